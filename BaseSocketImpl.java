@@ -9,6 +9,17 @@ abstract class BaseSocketImpl extends SocketImpl {
   //   protected int port;
   //   protected int localport;
 
+  // read-only options with the retransmission timer state, as Integer
+  // values in milliseconds
+  public static final int TCP_RTO = 0x5001;
+  public static final int TCP_SRTT = 0x5002;
+  public static final int TCP_RTTVAR = 0x5003;
+
+  // congestion control: the algorithm name as a String (see
+  // CongestionControl), and the current window in bytes (read-only)
+  public static final int TCP_CONGESTION = 0x5004;
+  public static final int TCP_CWND = 0x5005;
+
   /**
    * Creates either a stream or a datagram socket. 
    *
@@ -126,7 +137,7 @@ abstract class BaseSocketImpl extends SocketImpl {
 
   protected abstract void acceptConnection() throws IOException;
 
-  protected abstract void handleTimer(Object ref);
+  protected abstract void handleTimer(TCPTimerTask timer, Object ref);
 
   public void setOption(int optID, Object value)
     throws SocketException {
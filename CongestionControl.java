@@ -0,0 +1,84 @@
+import java.net.SocketException;
+
+/**
+ * Congestion control algorithm of one connection. StudentSocketImpl
+ * reports acknowledgements, loss recovery and timeouts, and keeps the
+ * bytes it has in flight within getCwnd().
+ *
+ * All sizes are in bytes. Implementations are only called while the
+ * owning socket's lock is held, so they need no locking of their own.
+ */
+interface CongestionControl {
+
+  String RENO = "reno";
+  String CUBIC = "cubic";
+
+  /**
+   * Creates the algorithm with the given name.
+   * @param name RENO or CUBIC
+   * @param mss segment size of the connection
+   * @exception SocketException if the name is not known
+   */
+  static CongestionControl create(String name, int mss) throws SocketException {
+    if (RENO.equals(name)) {
+      return new RenoCongestionControl(mss);
+    }
+    if (CUBIC.equals(name)) {
+      return new CubicCongestionControl(mss);
+    }
+    throw new SocketException("unknown congestion control: " + name);
+  }
+
+  /**
+   * @return the name the algorithm was created with
+   */
+  String getName();
+
+  /**
+   * @return how many bytes may currently be unacknowledged
+   */
+  int getCwnd();
+
+  /**
+   * @return the slow start threshold
+   */
+  int getSsthresh();
+
+  /**
+   * New data was acknowledged outside of loss recovery.
+   * @param ackedBytes bytes newly acknowledged
+   * @param rtt round-trip time sampled from this ACK in ms, or -1
+   */
+  void onAck(int ackedBytes, long rtt);
+
+  /**
+   * A loss was detected by duplicate ACKs or SACK and fast recovery
+   * starts.
+   * @param flightSize bytes in flight when the loss was detected
+   */
+  void onEnterRecovery(int flightSize);
+
+  /**
+   * A further duplicate ACK arrived during recovery, so one more segment
+   * has left the network.
+   */
+  void onDupAck();
+
+  /**
+   * Recovery goes on, but an ACK covered part of the data outstanding
+   * when it started.
+   * @param ackedBytes bytes newly acknowledged
+   */
+  void onPartialAck(int ackedBytes);
+
+  /**
+   * Everything outstanding at the start of recovery was acknowledged.
+   */
+  void onExitRecovery();
+
+  /**
+   * The retransmission timer expired.
+   * @param flightSize bytes in flight when the timer expired
+   */
+  void onTimeout(int flightSize);
+}
@@ -0,0 +1,116 @@
+/**
+ * CUBIC congestion control (RFC 8312). After a loss the window grows
+ * along a cubic curve centered on the window size at which the loss
+ * happened, so it recovers quickly, probes carefully around the old
+ * maximum and then accelerates again. The growth depends on time since
+ * the loss rather than on the number of ACKs, which keeps flows with
+ * different round-trip times fair to each other.
+ *
+ * Windows are kept in segments as doubles, as in the RFC, and converted
+ * to bytes in getCwnd().
+ */
+class CubicCongestionControl implements CongestionControl {
+
+  private static final double C = 0.4;
+  private static final double BETA = 0.7;
+
+  private final int mss;
+  private double cwnd;                  // in segments
+  private double ssthresh = Double.MAX_VALUE;
+  private double wMax;                  // window before the last reduction
+  private double k;                     // seconds to get back to wMax
+  private long epochStart;              // start of the current growth period, 0 if none
+  private long minRtt = Long.MAX_VALUE; // in ms
+
+  CubicCongestionControl(int mss) {
+    this.mss = mss;
+    this.cwnd = (double) RenoCongestionControl.initialWindow(mss) / mss;
+  }
+
+  public String getName() {
+    return CUBIC;
+  }
+
+  public int getCwnd() {
+    return (int) (cwnd * mss);
+  }
+
+  public int getSsthresh() {
+    return ssthresh == Double.MAX_VALUE ? Integer.MAX_VALUE : (int) (ssthresh * mss);
+  }
+
+  public void onAck(int ackedBytes, long rtt) {
+    if (rtt >= 0) {
+      minRtt = Math.min(minRtt, Math.max(rtt, 1));
+    }
+    double acked = (double) ackedBytes / mss;
+    if (cwnd < ssthresh) {
+      cwnd += Math.min(acked, 1);
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    if (epochStart == 0) {
+      epochStart = now;
+      if (cwnd < wMax) {
+        k = Math.cbrt((wMax - cwnd) / C);
+      } else {
+        k = 0;
+        wMax = cwnd;
+      }
+    }
+    double rttSec = (minRtt == Long.MAX_VALUE ? 100 : minRtt) / 1000.0;
+    double t = (now - epochStart) / 1000.0;
+
+    // where the cubic curve will be one round trip from now
+    double target = C * Math.pow(t + rttSec - k, 3) + wMax;
+    double increase;
+    if (target > cwnd) {
+      increase = (target - cwnd) / cwnd;
+    } else {
+      increase = 0.01 / cwnd; // plateau around wMax
+    }
+
+    // never grow slower than Reno would in the same time
+    double wEst = wMax * BETA + 3 * (1 - BETA) / (1 + BETA) * (t / rttSec);
+    if (wEst > cwnd) {
+      increase = Math.max(increase, (wEst - cwnd) / cwnd);
+    }
+    cwnd += increase * acked;
+  }
+
+  public void onEnterRecovery(int flightSize) {
+    reduce();
+  }
+
+  public void onDupAck() {
+    // the window was reduced once for this loss; nothing to inflate
+  }
+
+  public void onPartialAck(int ackedBytes) {
+  }
+
+  public void onExitRecovery() {
+  }
+
+  public void onTimeout(int flightSize) {
+    reduce();
+    cwnd = 1;
+  }
+
+  /**
+   * Multiplicative decrease, remembering where the loss happened. When
+   * losses come before the previous maximum was reached, wMax is lowered
+   * further to release bandwidth to newer flows (fast convergence).
+   */
+  private void reduce() {
+    epochStart = 0;
+    if (cwnd < wMax) {
+      wMax = cwnd * (1 + BETA) / 2;
+    } else {
+      wMax = cwnd;
+    }
+    cwnd = Math.max(cwnd * BETA, 2);
+    ssthresh = cwnd;
+  }
+}
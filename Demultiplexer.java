@@ -1,6 +1,10 @@
 import java.net.*;
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 //------------------------------------------------------------
 //
@@ -46,70 +50,174 @@ import java.io.*;
 //     localPort = destPort;
 //     remotePort = sourcePort;
 //
+//
+//
+// LANES
+//   the thread only receives and parses datagrams. each packet is
+//   then queued on one of several lanes, each lane being a thread of
+//   its own that hands its packets to receivePacket() one at a time.
+//   the lane is picked by hashing the connection's remote address and
+//   both ports, so all packets of one connection go through the same
+//   lane and keep their order, while different connections are
+//   processed in parallel. a connection that is slow to take its
+//   packets only holds up the connections sharing its lane.
+//
+//   packets are handed to a lane in batches: the receiving thread
+//   collects them while draining the channel and passes each lane all
+//   of its packets at once, and a lane takes everything queued at
+//   once, so a burst costs one lock and one wakeup per lane instead of
+//   one per packet.
+//
 //------------------------------------------------------------
 
 class Demultiplexer extends Thread {
 
-    // this number is for connecting requests, where each connection
+    // local ports for connecting requests, where each connection
     // should have a unique port number but nothing specific.
-    private static int nextAvailablePortNumber;
+    private TCPPortAllocator ports;
+
+    // big enough for any UDP datagram, so nothing is ever truncated
+    static final int RECEIVE_BUFFER_SIZE = 65536;
+
+    // datagrams are received one after another into chunks of this
+    // size, see run(), and this many free chunks are kept for reuse.
+    static final int RECEIVE_CHUNK_SIZE = 4*RECEIVE_BUFFER_SIZE;
+    static final int RECEIVE_CHUNKS_POOLED = 16;
+
+    // packets waiting on one lane before further ones are dropped, as
+    // a router would; TCP will send them again.
+    static final int LANE_QUEUE_SIZE = 1024;
+
+    // packets collected for one lane before they are handed over even
+    // though more are waiting to be received.
+    static final int LANE_BATCH_SIZE = 64;
+
+    // number of lanes the next Demultiplexer will use, see TCPStart
+    private static int defaultLaneCount =
+        Math.min(4, Runtime.getRuntime().availableProcessors());
 
     // port to listen for UDP datagrams
     private int portForUDP;
 
-    // Hashtable provides an easy way to identify unique connections.
-    // will be filled with StudentSocketImpl objects.
-    private Hashtable connectionTable;
+    // identifies unique connections by remote address, local port and
+    // remote port, without building a key object for every packet.
+    // registering and unregistering need no lock of ours: the tables
+    // add and remove entries atomically, so of two connections
+    // registering the same key exactly one succeeds.
+    private TCPConnectionTable<StudentSocketImpl> connectionTable;
+
+    // need a second table for ports that are listening for a
+    // connect() attempt. keyed by local port only, the remote address
+    // is null and the remote port 0.
+    private TCPConnectionTable<TCPListener> listeningTable;
 
-    // need a second table for connections that are listening for a
-    // connect() attempt.
-    // will be filled with StudentSocketImpl objects.
-    private Hashtable listeningTable;
+    // one queue per lane, each drained by its own Lane thread
+    private Lane lanes[];
+
+    // direct buffers to receive into, see run()
+    private TCPBufferPool chunks;
 
 
     // constructor, of course
     Demultiplexer( int portNum ) {
         super();
         this.setDaemon(true);
-        nextAvailablePortNumber = 12345; // as long as its a high port number
+        ports = new TCPPortAllocator(TCPPortAllocator.FIRST_EPHEMERAL_PORT,
+                                     TCPPortAllocator.LAST_EPHEMERAL_PORT);
         portForUDP = portNum; // will listen on this port number
-        connectionTable = new Hashtable();
-        listeningTable = new Hashtable();
+        connectionTable = new TCPConnectionTable<StudentSocketImpl>();
+        listeningTable = new TCPConnectionTable<TCPListener>();
+        chunks = new TCPBufferPool(true, RECEIVE_CHUNKS_POOLED);
+        lanes = new Lane[defaultLaneCount];
+        for (int i=0; i<lanes.length; i++)
+            lanes[i] = new Lane(i);
+    }
+
+
+    // sets the number of lanes of Demultiplexers created from now on.
+    static public void setLaneCount(int count) {
+        if (count < 1)
+            throw new IllegalArgumentException("need at least one lane");
+        defaultLaneCount = count;
+    }
+
+
+    // starts the lanes along with the receiving thread
+    public void start() {
+        for (int i=0; i<lanes.length; i++)
+            lanes[i].start();
+        super.start();
     }
 
 
     // thread will loop forever, continuously listening for incoming
     // packets, which will then be unwrapped and demultiplexed BEFORE
     // receiving the next packet.
+    //
+    // the channel is put in non-blocking mode and watched by a
+    // Selector. every time it becomes readable we drain all queued
+    // datagrams into a chunk, each right behind the one before. a
+    // TCPPacket is only a view of its datagram's bytes, so the chunk
+    // is never written over: once fewer than RECEIVE_BUFFER_SIZE bytes
+    // are left a new one is started. chunks are direct buffers from a
+    // pool, so the kernel copies straight into them, and every packet
+    // holds its chunk until it is released: the old chunk goes back to
+    // the pool with the last packet read from it.
     public void run() {
         TCPPacket packet;
-        byte buf[] = new byte[TCPPacket.MAX_PACKET_SIZE+20];
-        DatagramPacket p;
-        DatagramSocket ds;
+        TCPBufferPool.PooledBuffer chunk = chunks.acquire(RECEIVE_CHUNK_SIZE);
+        ByteBuffer buf = chunk.buffer;
+        SocketAddress from;
         try{
-            ds = new DatagramSocket(portForUDP);
+            // receive on the same channel TCPWrapper sends on
+            DatagramChannel channel = TCPWrapper.getChannel();
+            channel.configureBlocking(false);
+            Selector selector = Selector.open();
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            // TCPWrapper watches for OP_WRITE with it when the socket
+            // buffer is full
+            TCPWrapper.setSelectionKey(key);
             
             // MAIN LOOP OF THE THREAD:
             //--------------------------------------
             while (true) {
                 
-                // listen for UDP datagrams this function blocks, which
-                // is what we want.
-                p = new DatagramPacket(buf,TCPPacket.MAX_PACKET_SIZE+20);
-
-                ds.receive(p);
-
-                // when received, invoke TCPWrapper.unwrap(datagram)
-                packet = TCPWrapper.unwrap(p);
-
-                System.out.println("\n>>> packet received from "+
-                                   p.getAddress()+" size="+p.getLength());
-                System.out.println(">>> "+packet+"\n");
-
-                
-                // invoke demultiplex - will NOT return until the packet
-                // has been processed completely.
-                demultiplex(packet);
+                // wait for UDP datagrams. this blocks, which is what
+                // we want.
+                selector.select();
+                selector.selectedKeys().clear();
+                if (key.isValid() && key.isWritable())
+                    TCPWrapper.channelWritable();
+
+                while (true) {
+                    if (buf.remaining() < RECEIVE_BUFFER_SIZE) {
+                        chunk.release();
+                        chunk = chunks.acquire(RECEIVE_CHUNK_SIZE);
+                        buf = chunk.buffer;
+                    }
+                    int start = buf.position();
+                    from = channel.receive(buf);
+                    if (from == null) {
+                        // nothing left queued, hand over what we have
+                        for (int i=0; i<lanes.length; i++)
+                            lanes[i].handOver();
+                        break;
+                    }
+
+                    // when received, invoke TCPWrapper.unwrap(datagram)
+                    InetAddress sender = ((InetSocketAddress)from).getAddress();
+                    packet = TCPWrapper.unwrap(chunk, start,
+                                               buf.position()-start, sender);
+                    if (!packet.isValid()) {
+                        System.err.println("!!! MALFORMED PACKET DROPPED");
+                        packet.release();
+                        continue;
+                    }
+
+                    // add it to the batch of the lane of its
+                    // connection, which logs and demultiplexes it.
+                    laneFor(packet).add(packet);
+                }
             }
             //--------------------------------------
 
@@ -120,6 +228,107 @@ class Demultiplexer extends Thread {
     
     }
 
+
+    // picks the lane of the connection a packet belongs to. the remote
+    // address and both ports are the same for every packet of a
+    // connection, including the SYN that opens it.
+    private Lane laneFor(TCPPacket packet) {
+        int h = packet.sourceAddr.hashCode();
+        h = h*31 + packet.sourcePort;
+        h = h*31 + packet.destPort;
+        h ^= (h >>> 16);
+        return( lanes[Math.floorMod(h, lanes.length)] );
+    }
+
+
+    //------------------------------------------------------------
+    // a lane: a queue of received packets and the thread that
+    // demultiplexes them in the order they were received.
+    //------------------------------------------------------------
+    private class Lane extends Thread {
+
+        // packets handed over, guarded by itself
+        private final ArrayDeque<TCPPacket> queue =
+            new ArrayDeque<TCPPacket>(LANE_QUEUE_SIZE);
+
+        // packets collected by the receiving thread and not handed over
+        // yet, only used by that thread
+        private final ArrayList<TCPPacket> batch =
+            new ArrayList<TCPPacket>(LANE_BATCH_SIZE);
+
+        Lane(int number) {
+            super("Demultiplexer lane "+number);
+            this.setDaemon(true);
+        }
+
+        // called by the receiving thread, never blocks it
+        void add(TCPPacket packet) {
+            batch.add(packet);
+            if (batch.size() >= LANE_BATCH_SIZE)
+                handOver();
+        }
+
+        // called by the receiving thread: queues the batch, dropping
+        // what does not fit, and wakes the lane if it was idle.
+        void handOver() {
+            if (batch.isEmpty())
+                return;
+            int queued = 0;
+            synchronized (queue) {
+                boolean idle = queue.isEmpty();
+                for (; queued<batch.size() && queue.size()<LANE_QUEUE_SIZE;
+                     queued++)
+                    queue.add(batch.get(queued));
+                if (idle)
+                    queue.notify();
+            }
+            for (int i=queued; i<batch.size(); i++) {
+                System.err.println("!!! "+getName()+" FULL, PACKET DROPPED");
+                batch.get(i).release();
+            }
+            batch.clear();
+        }
+
+        public void run() {
+            ArrayList<TCPPacket> packets =
+                new ArrayList<TCPPacket>(LANE_QUEUE_SIZE);
+            while (true) {
+                synchronized (queue) {
+                    try {
+                        while (queue.isEmpty())
+                            queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    packets.addAll(queue);
+                    queue.clear();
+                }
+
+                for (TCPPacket packet : packets) {
+                    // the checksum is checked here rather than by the
+                    // receiving thread, so the lanes share the work.
+                    if (!TCPWrapper.checksumOk(packet)) {
+                        System.err.println("!!! BAD CHECKSUM, PACKET DROPPED");
+                        packet.release();
+                        continue;
+                    }
+
+                    System.out.println("\n>>> packet received from "+
+                                       packet.sourceAddr);
+                    System.out.println(">>> "+packet+"\n");
+
+                    // invoke demultiplex - will NOT return until the
+                    // packet has been processed completely. whoever
+                    // wants to keep the packet longer holds it with
+                    // retain().
+                    demultiplex(packet);
+                    packet.release();
+                }
+                packets.clear();
+            }
+        }
+    }
+
     
     // receives the TCP packet, decides which connection to pass it off
     // to.  also handles special case of a new connection, or an
@@ -132,113 +341,109 @@ class Demultiplexer extends Thread {
     public void demultiplex(TCPPacket packet) {
 
         // remember, when receiving, destPort is the localPort.
-        String hashString = getHashTableKey(packet.sourceAddr,packet.destPort,
-                                            packet.sourcePort);
-
-        StudentSocketImpl c = (StudentSocketImpl)connectionTable.get(hashString);
+        StudentSocketImpl c = connectionTable.get(packet.sourceAddr,
+                                                  packet.destPort,
+                                                  packet.sourcePort);
 
 
         // either we find connection in the connectionTable, or we find
-        // it in the listeningTable, or we dont find the connection at all.
+        // a listener for the port in the listeningTable, or we dont find
+        // the connection at all.
 
         
         if (c!=null){ // if connection found
             // System.out.println("%% connection found: "+c);
             c.receivePacket( packet );
+            return;
         }
-        else if (packet.synFlag) { // if packet is a SYN to open connection
-
-            // if the connection wasnt found yet, then we check for
-            // listening sockets - of course, the packet received had to
-            // be a SYN for this search to be necessary.
 
-            
-            // try and find the listener in the listeningTable this time.
-            hashString = getHashTableKey(packet.destPort);
-
-            c = (StudentSocketImpl) listeningTable.get(hashString);
+        // if the connection wasnt found yet, then it may be one the
+        // listener on the port is still setting up or has not handed to
+        // accept() yet: a SYN, the ACK completing the handshake, or data
+        // following it.
+        TCPListener l = listeningTable.get(null, packet.destPort, 0);
 
-            // if the listeningSocket was found.
-            if (c!=null){
-                // System.out.println("%% listeningSocket found: "+c);
-  	        c.receivePacket(packet);
-            }
-	    else
-	      System.err.println("!!! UNMATCHED PACKET");
+        if (l!=null){
+            // System.out.println("%% listener found: "+l);
+            l.receivePacket(packet);
         }
-	else
-	  System.err.println("!!! UNMATCHED PACKET");
+        else
+            System.err.println("!!! UNMATCHED PACKET");
 
     }
 
 
-    // adds a StudentSocketImpl to the listeningTable hashTable.
-    synchronized public void registerListeningSocket (
-        int localPort, StudentSocketImpl connection) throws IOException {
-
-        // String is a reasonable hash key to identify a unique
-        // combination of these 2 variables.
-        String hashKey =  getHashTableKey(localPort);
+    // adds a TCPListener to the listeningTable.
+    public void registerListener (
+        int localPort, TCPListener listener) throws IOException {
 
-        if (listeningTable.get(hashKey)!=null )
+        if (listeningTable.putIfAbsent(null, localPort, 0, listener)!=null)
             throw(new IOException("%% CONNECTION EXISTS ALREADY"));
-        listeningTable.put(hashKey, connection);
     }
     
-    // adds a StudentSocketImpl to the connectionTable hashTable.
-    synchronized public void registerConnection(InetAddress remoteHost,
+    // adds a StudentSocketImpl to the connectionTable.
+    public void registerConnection(InetAddress remoteHost,
                                    int localPort, int remotePort,
                                    StudentSocketImpl connection) throws IOException{
         
-        // String is a reasonable hash key to identify a unique
-        // combination of these 3 variables.
-        String hashKey = getHashTableKey(remoteHost,localPort,remotePort);
-        if (connectionTable.get(hashKey)!=null)
+        if (connectionTable.putIfAbsent(remoteHost, localPort, remotePort,
+                                        connection)!=null)
             throw(new IOException("%% CONNECTION EXISTS ALREADY"));
-        connectionTable.put( hashKey, connection);
     }
 
-    synchronized public void unregisterListeningSocket (
-        int localPort, StudentSocketImpl connection) throws IOException {
+    public void unregisterListener (
+        int localPort, TCPListener listener) throws IOException {
 
-        String hashKey =  getHashTableKey(localPort);
-
-        if (listeningTable.get(hashKey)!=connection )
-            // must be the EXACT SAME reference
+        // must be the EXACT SAME reference
+        if (!listeningTable.remove(null, localPort, 0, listener))
             throw(new IOException("%% CANNOT UNREGISTER LISTENING SOCKET"));
-        
-        listeningTable.remove(hashKey);
     }
 
-    synchronized public void unregisterConnection(InetAddress remoteHost,
+    // the listener of a port, or null if nothing listens on it
+    public TCPListener getListener(int localPort) {
+        return( listeningTable.get(null, localPort, 0) );
+    }
+
+    public void unregisterConnection(InetAddress remoteHost,
                                    int localPort, int remotePort,
                                    StudentSocketImpl connection) throws IOException{
         
-        String hashKey = getHashTableKey(remoteHost,localPort,remotePort);
-        if (connectionTable.get(hashKey)!=connection)
-            // must be the EXACT SAME reference
+        // must be the EXACT SAME reference
+        if (!connectionTable.remove(remoteHost, localPort, remotePort,
+                                    connection))
             throw(new IOException("%% CANNOT UNREGISTER CONNECTION"));
-        connectionTable.remove(hashKey);
     }
 
 
-    // for the listeningTable
-    public String getHashTableKey(int localPort) {
-        return( Integer.toString(localPort));
-    }
-
-    // for the ConnectionTable
-    public String getHashTableKey(InetAddress remoteHost,
-                                int localPort, int remotePort) {
-        return( remoteHost.getHostAddress() + Integer.toString(localPort)
-                + Integer.toString(remotePort));
+    // for connections that are actively connecting (as opposed to
+    // passively listening for a connection). the port stays taken
+    // until it is given back with releasePort(), which the connection
+    // does once it has left TIME_WAIT.
+    public int getNextAvailablePort() throws IOException {
+        // a server may be listening on a port of the range. such ports
+        // are held while we look further and given back afterwards.
+        ArrayList<Integer> skipped = null;
+        try {
+            while (true) {
+                int port = ports.allocate();
+                if (port < 0)
+                    throw(new IOException("%% NO LOCAL PORT AVAILABLE"));
+                if (listeningTable.get(null, port, 0) == null)
+                    return(port);
+                if (skipped == null)
+                    skipped = new ArrayList<Integer>();
+                skipped.add(port);
+            }
+        } finally {
+            if (skipped != null)
+                for (int port : skipped)
+                    ports.release(port);
+        }
     }
 
-    // for connections that are actively connecting (as opposed to
-    // passively listening for a connection)
-    synchronized public int getNextAvailablePort() {
-        nextAvailablePortNumber++;
-        return(nextAvailablePortNumber);
+    // gives back a port from getNextAvailablePort()
+    public void releasePort(int port) {
+        ports.release(port);
     }
 
     static public void main (String args[]) {
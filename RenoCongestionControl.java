@@ -0,0 +1,77 @@
+/**
+ * Classic Reno congestion control (RFC 5681): slow start up to
+ * ssthresh, then one segment of growth per round trip, and halving of
+ * the window on loss with window inflation during fast recovery.
+ */
+class RenoCongestionControl implements CongestionControl {
+
+  private final int mss;
+  private int cwnd;
+  private int ssthresh = Integer.MAX_VALUE;
+  private int bytesAcked; // acknowledged bytes not yet turned into growth
+
+  RenoCongestionControl(int mss) {
+    this.mss = mss;
+    this.cwnd = initialWindow(mss);
+  }
+
+  /**
+   * The initial window of RFC 3390.
+   * @param mss segment size of the connection
+   * @return the initial congestion window in bytes
+   */
+  static int initialWindow(int mss) {
+    return Math.min(4 * mss, Math.max(2 * mss, 4380));
+  }
+
+  public String getName() {
+    return RENO;
+  }
+
+  public int getCwnd() {
+    return cwnd;
+  }
+
+  public int getSsthresh() {
+    return ssthresh;
+  }
+
+  public void onAck(int ackedBytes, long rtt) {
+    if (cwnd < ssthresh) {
+      // slow start, at most one segment per ACK
+      cwnd += Math.min(ackedBytes, mss);
+      return;
+    }
+    // congestion avoidance, one segment per window of acknowledged data
+    bytesAcked += ackedBytes;
+    if (bytesAcked >= cwnd) {
+      bytesAcked -= cwnd;
+      cwnd += mss;
+    }
+  }
+
+  public void onEnterRecovery(int flightSize) {
+    ssthresh = Math.max(flightSize / 2, 2 * mss);
+    cwnd = ssthresh + 3 * mss;
+    bytesAcked = 0;
+  }
+
+  public void onDupAck() {
+    cwnd += mss;
+  }
+
+  public void onPartialAck(int ackedBytes) {
+    // deflate by what left the network, then allow one new segment
+    cwnd = Math.max(cwnd - ackedBytes, 0) + mss;
+  }
+
+  public void onExitRecovery() {
+    cwnd = ssthresh;
+  }
+
+  public void onTimeout(int flightSize) {
+    ssthresh = Math.max(flightSize / 2, 2 * mss);
+    cwnd = mss;
+    bytesAcked = 0;
+  }
+}
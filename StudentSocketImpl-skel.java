@@ -1,8 +1,12 @@
 import java.io.*;
 import java.net.*;
-import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Random;
-import java.util.Timer;
+import java.util.TreeMap;
 
 class StudentSocketImpl extends BaseSocketImpl {
 
@@ -14,7 +18,6 @@ class StudentSocketImpl extends BaseSocketImpl {
   private static final String CLOSED = "CLOSED";
   private static final String SYN_SENT = "SYN_SENT";
   private static final String LISTEN = "LISTEN";
-  private static final String SYN_RCVD = "SYN_RCVD";
   private static final String ESTABLISHED = "ESTABLISHED";
   private static final String CLOSE_WAIT = "CLOSE_WAIT";
   private static final String LAST_ACK = "LAST_ACK";
@@ -23,27 +26,158 @@ class StudentSocketImpl extends BaseSocketImpl {
   private static final String CLOSING = "CLOSING";
   private static final String TIME_WAIT = "TIME_WAIT";
   private static final long TIMEOUT = 10000;
+  // segment size assumed for a remote host that sends no MSS option
+  private static final int DEFAULT_PEER_MSS = 536;
+  // buffer sizes, at least; each buffer holds at least BUFFER_SEGMENTS
+  // segments of our MSS
+  private static final int SEND_BUFFER_SIZE = 16 * 1024;
+  private static final int RECV_BUFFER_SIZE = 16 * 1024;
+  private static final int BUFFER_SEGMENTS = 8;
+  // duplicate ACKs, or SACKed segments above a hole, before the hole is
+  // considered lost
+  private static final int DUP_THRESH = 3;
+  // longest an acknowledgement of in-order data is held back, in ms
+  private static final long ACK_DELAY = 40;
 
-  private PipedInputStream appIS;
-  private PipedOutputStream appOS;
+  // number of unacknowledged segments a connection may have in flight
+  // unless configured otherwise (see TCPStart); within this limit the
+  // congestion window decides
+  private static int defaultSendWindow = 32;
+  private static String defaultCongestionControl = CongestionControl.RENO;
+  // largest segment new connections accept, advertised in their SYN
+  private static int defaultMss = 512;
+  // how long a connection stays in TIME_WAIT (twice the maximum segment
+  // lifetime) before its ports may be used again
+  private static long timeWaitDelay = 30000;
+
+  private InputStream appIS;
+  private OutputStream appOS;
+  private TCPByteRing recvBuffer; // data from the network, read by the app through appIS
+  private TCPByteRing sendBuffer; // data written by the app to appOS, read by the sender thread
   private Demultiplexer D;
-  private Timer tcpTimer;
+  private TCPListener listener; // set while this is a listening socket
+  private boolean ownsLocalPort; // localport came from D.getNextAvailablePort()
+  private TCPTimerTask tcpTimer; // retransmission, or TIME_WAIT once closed
+  private TCPTimerTask persistTimer; // probes a zero window with nothing in flight
+  private boolean windowProbe; // persist timer expired, one segment may be sent
+  private TCPTimerTask delayedAckTimer; // sends the ACK unackedSegments are waiting for
+  private int unackedSegments; // in-order segments received since our last ACK
   private String current_state;
   private int seqNum;
   private int ackNum;
 
+  // Sender state: segments sent but not yet acknowledged, oldest first
+  private LinkedList<Segment> unacked;
+  private int sndUna;
+  private int sendWindow;
+  private int mss; // largest segment we accept
+  private int sendMss; // largest segment we send, see setSendMss()
+  private boolean noDelay; // TCP_NODELAY: send partial segments at once
+  private boolean appClosed; // the application closed appOS
+  private boolean senderDone;
+  private int sndWnd; // window last advertised by the remote host
+  private boolean sackEnabled; // both sides sent SACK-permitted
+  private TCPRttEstimator rtt;
+  private long handshakeSentAt; // when our SYN went out, 0 once resent
+
+  // Fast retransmit / fast recovery (NewReno) state
+  private int dupAcks;
+  private boolean inRecovery;
+  private boolean timeoutRecovery; // resending what was outstanding at a timeout
+  private int recover; // seqNum when recovery started; ends once acknowledged
+  private CongestionControl cc;
+
+  // Receiver state: segments that arrived ahead of ackNum, keyed by
+  // sequence number, and the number of payload bytes they hold
+  private TreeMap<Integer, TCPPacket> outOfOrder; // held, see TCPPacket.retain()
+  private int outOfOrderBytes;
+  private int lastOutOfOrderSeq; // reported in the first SACK block
+  private volatile int advertisedWindow; // last window we sent, see receiveWindow()
+
   StudentSocketImpl(Demultiplexer D) {  // default constructor
     try {
       this.D = D;
       this.current_state = CLOSED;    
-      this.appOS = new PipedOutputStream();
-      this.appIS = new PipedInputStream(appOS);
+      this.appOS = new OutputStream() {
+        // wake the sender as well, it may be holding back a partial
+        // segment for more data
+        public void write(int b) throws IOException {
+          write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+          Objects.checkFromIndexSize(off, len, b.length);
+          sendBuffer.write(b, off, len);
+          dataWritten();
+        }
+
+        public void close() {
+          sendBuffer.closeWrite();
+          appClosed = true;
+          dataWritten();
+        }
+      };
+      this.mss = defaultMss;
+      this.sendMss = Math.min(mss, DEFAULT_PEER_MSS);
+      this.recvBuffer = new TCPByteRing(Math.max(RECV_BUFFER_SIZE, BUFFER_SEGMENTS * mss));
+      this.sendBuffer = new TCPByteRing(Math.max(SEND_BUFFER_SIZE, BUFFER_SEGMENTS * mss));
+      this.appIS = readStream(recvBuffer);
+      this.unacked = new LinkedList<>();
+      this.outOfOrder = new TreeMap<>(TCPSeq::compare);
+      this.sendWindow = defaultSendWindow;
+      this.rtt = new TCPRttEstimator();
+      this.cc = CongestionControl.create(defaultCongestionControl, sendMss);
       // System.out.println("DEBUG: Student Socket initialized.");
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * Sets the number of unacknowledged segments new connections may have
+   * in flight.
+   * @param segments the window size in segments, at least 1
+   */
+  static void setDefaultSendWindow(int segments) {
+    if (segments < 1) {
+      throw new IllegalArgumentException("send window must be at least one segment");
+    }
+    defaultSendWindow = segments;
+  }
+
+  /**
+   * Sets the congestion control algorithm of new connections.
+   * @param name the algorithm, see CongestionControl
+   * @exception SocketException if the algorithm is not known
+   */
+  static void setDefaultCongestionControl(String name) throws SocketException {
+    CongestionControl.create(name, defaultMss);
+    defaultCongestionControl = name;
+  }
+
+  /**
+   * Sets the largest segment new connections accept. Segments are sent
+   * no larger than the MSS of either side.
+   * @param bytes the MSS, from 64 up to TCPPacket.MAX_SEGMENT_SIZE
+   */
+  static void setDefaultMss(int bytes) {
+    if (bytes < 64 || bytes > TCPPacket.MAX_SEGMENT_SIZE) {
+      throw new IllegalArgumentException("MSS must be between 64 and " + TCPPacket.MAX_SEGMENT_SIZE);
+    }
+    defaultMss = bytes;
+  }
+
+  /**
+   * Sets how long connections stay in TIME_WAIT.
+   * @param millis the delay in milliseconds, at least 0
+   */
+  static void setTimeWaitDelay(long millis) {
+    if (millis < 0) {
+      throw new IllegalArgumentException("TIME_WAIT delay cannot be negative");
+    }
+    timeWaitDelay = millis;
+  }
+
   /**
    * Connects this socket to the specified port number on the specified host.
    *
@@ -56,18 +190,29 @@ class StudentSocketImpl extends BaseSocketImpl {
     try {
       // Set up the connection
       localport = D.getNextAvailablePort();
+      ownsLocalPort = true;
       this.address = address;
       this.port = port;
 
       Random r = new Random();
-      this.seqNum = r.nextInt(1000); // change to randomize from 0-1000
+      this.seqNum = r.nextInt(); // anywhere in the 32 bit sequence space
       // System.out.println("DEBUG: Variables initialized.");
 
-      D.registerConnection(address, localport, port, this);
+      try {
+        D.registerConnection(address, localport, port, this);
+      } catch (IOException e) {
+        // never registered, so releaseConnection() will not give it back
+        D.releasePort(localport);
+        ownsLocalPort = false;
+        throw e;
+      }
       // System.out.println("DEBUG: Connection registered with " + address + " at " + port + " to local port " + localport);
 
       // Create and send a SYN packet to the target host
-      TCPPacket synPacket = new TCPPacket(localport, port, seqNum, 0, false, true, false, 1000, new byte[0]);
+      TCPPacket synPacket = new TCPPacket(localport, port, seqNum, 0, false, true, false, receiveWindow(), new byte[0]);
+      synPacket.sackPermitted = true;
+      synPacket.mss = mss;
+      handshakeSentAt = System.currentTimeMillis();
       // System.out.println("DEBUG: TCPPacket created.");
 
       sendPacketOnTimer(synPacket);
@@ -83,6 +228,8 @@ class StudentSocketImpl extends BaseSocketImpl {
         long elapsed = System.currentTimeMillis() - timeStart;
         long timeLeft = TIMEOUT - elapsed;
         if (timeLeft <= 0) {
+          cancelTimer();
+          changeState(CLOSED);
           throw new IOException("TCP Timeout from connection waiting to be established.");
         }
         try {
@@ -92,29 +239,6 @@ class StudentSocketImpl extends BaseSocketImpl {
         }
       }
       // System.out.println("DEBUG: Connection established");
-      
-      // Use the connection to send data
-      new Thread(() -> {
-        byte[] buf = new byte[512];
-        int l;
-        try {
-          while ((l = appIS.read(buf)) != -1) {
-              byte[] dataToSend = Arrays.copyOf(buf, l);
-              TCPPacket dataPacket = new TCPPacket(localport, port, seqNum, ackNum, true, false, false, 1000, dataToSend);
-              sendPacketOnTimer(dataPacket);
-
-                try {
-                  wait();
-                } catch (InterruptedException e) {
-                  throw new IOException("ERROR: Connection Interrupted", e);
-                }
-              // Space for retransmission (if needed)
-              seqNum = (seqNum + l) % TCPPacket.MAX_PACKET_SIZE;
-          }
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-      }).start();
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -127,53 +251,8 @@ class StudentSocketImpl extends BaseSocketImpl {
   public synchronized void receivePacket(TCPPacket p) {
     System.out.println("Packet received: " + p);
     this.notifyAll();
-    int packetLength = 1;
     switch(current_state) {
 
-      // Server is currently awaiting first SYN from client
-      // Upon receiving a SYN, send SYN+ACK and switch to SYN_RCVD state
-      case LISTEN:
-
-        // Check if packet is a SYN; should ignore if not SYN
-        if (! p.synFlag) {
-          System.err.println("DEBUG: Packet received during state LISTEN but it was not a SYN packet.");
-          break;
-        }
-
-        // Get packet information and flags
-        this.address = p.sourceAddr;
-        this.port = p.sourcePort;
-        this.seqNum = p.ackNum;
-
-        packetLength = p.data != null? p.data.length : 20;
-        this.ackNum = (p.seqNum + packetLength) % TCPPacket.MAX_PACKET_SIZE;
-
-        // Set up connection and close the listening socket
-//        try {
-//          this.D.unregisterListeningSocket(localport, this);
-//        } catch (IOException e) {
-//          e.printStackTrace();
-//        }
-        // Go ahead and register connection with Demultiplexer
-        try {
-          this.D.unregisterListeningSocket(localport, this);
-          this.D.registerConnection(p.sourceAddr, localport, p.sourcePort, this);
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-
-        // Create and send SYN+ACK
-        TCPPacket synAckPacket = new TCPPacket(localport, port, seqNum, ackNum, true, true, false, 1000, new byte[0]);
-        System.out.println("DEBUG: TCPPacket created.");
-
-        // Send SYN-ACK Packet before registering, just in case 
-        sendPacketOnTimer(synAckPacket);
-        //TCPWrapper.send(synAckPacket, this.address);
-        System.out.println("SYNACK Packet sent to " + this.address + ":" + port);
-
-        changeState(SYN_RCVD);
-        break;
-
       // Client has sent a SYN to the server and awaits a SYN+ACK response
       // Upon receiving a SYN+ACK, reply with ACK and switch to ESTABLISHED state
       case SYN_SENT:
@@ -183,178 +262,657 @@ class StudentSocketImpl extends BaseSocketImpl {
           System.err.println("DEBUG: Packet received during state SYN_SENT but it was not a SYN+ACK packet.");
           break;
         }
-        this.tcpTimer.cancel();
+        cancelTimer();
+        sampleHandshake();
         this.seqNum = p.ackNum;
-        packetLength = p.data != null? p.data.length : 20;
-        this.ackNum = (p.seqNum + packetLength) % TCPPacket.MAX_PACKET_SIZE;
-
-        TCPPacket ackPacket = new TCPPacket(localport, port, seqNum, ackNum, true, false, false, 1000, new byte[0]);
-        // System.out.println("DEBUG: TCPPacket created.");
+        this.sndWnd = p.windowSize;
+        this.sackEnabled = p.sackPermitted;
+        setSendMss(p.mss);
+        // the SYN takes up one sequence number
+        this.ackNum = p.seqNum + 1;
 
-        TCPWrapper.send(ackPacket, this.address);
+        sendAck();
         // System.out.println("DEBUG: packet sent.");
 
         System.out.println("ACK Packet sent to " + this.address + ":" + port);
 
         changeState(ESTABLISHED);
+        startSender();
         break;
       
-      // Server has sent SYN+ACK and now awaits final ACK
-      // Upon receiving an ACK, switch to ESTABLISHED state
-      case SYN_RCVD:
-
-        // Check if packet is an ACK
-        if (p.ackFlag && !p.synFlag && !p.finFlag) {
-          // Stop waiting for ACK
-          tcpTimer.cancel();
-          changeState(ESTABLISHED);
-
-//          // Go ahead and register connection with Demultiplexer
-//          try {
-//            this.D.unregisterListeningSocket(localport, this);
-//            this.D.registerConnection(p.sourceAddr, localport, p.sourcePort, this);
-//          } catch (IOException e) {
-//            e.printStackTrace();
-//          }
-
-          break;
-        }
-        else if (p.synFlag && !p.ackFlag) {
-          // ACK was likely lost, resend SYN+ACK
-          // Create and send SYN+ACK
-          TCPPacket synAckPacket2 = new TCPPacket(localport, port, seqNum, ackNum, true, true, false, 1000, new byte[0]);
-          System.out.println("DEBUG: TCPPacket created.");
-
-          sendPacketOnTimer(synAckPacket2);
-          System.out.println("DEBUG: packet sent.");
-
-          System.out.println("SYNACK Packet sent to " + this.address + ":" + port);
-          break;
-        } 
-        // For handling unrecognized packets
-        System.err.println("DEBUG: Packet received during state SYN_RCVD but it was not a ACK packet. Packet info: " + p);
-        break;
-
       // Server has established connection and is awaiting data
       // Server receives data packets and parses them 
       // Or if packet is a FIN, reply with ACK and begin to close
       case ESTABLISHED:
         // Check for re-sent SYN+ACK (meaning ACK got lost)
         if (p.synFlag && p.ackFlag) {
-          // resend ACK
-          this.seqNum = p.ackNum;
-          packetLength = p.data != null? p.data.length : 20;
-          this.ackNum = (p.seqNum + packetLength) % TCPPacket.MAX_PACKET_SIZE;
-
-          TCPPacket ackPacket2 = new TCPPacket(localport, port, seqNum, ackNum, true, false, false, 1000, new byte[0]);
-          System.out.println("DEBUG: TCPPacket created.");
-
-          TCPWrapper.send(ackPacket2, this.address);
+          // resend ACK; seqNum and ackNum may have moved on since the
+          // handshake, so acknowledge with the current values
+          sendAck();
           System.out.println("DEBUG: packet sent.");
 
           System.out.println("ACK Packet sent to " + this.address + ":" + port);
           break;
         }
 
-        // Check for FIN
+        // Acknowledgements for our own data may arrive on any packet
+        if (p.ackFlag) {
+          processAck(p);
+        }
+
+        // Check for FIN; it is only accepted once all data before it has
+        // been received, otherwise the peer will retransmit it
         if (p.finFlag) {
-          packetLength = p.data != null? p.data.length : 20;
-          ackNum = (p.seqNum + packetLength) % TCPPacket.MAX_PACKET_SIZE;
-          TCPPacket ack = new TCPPacket(localport, port, seqNum, ackNum, true, false, false, 1000, new byte[0]);
-          TCPWrapper.send(ack, address);
+          if (p.seqNum != ackNum) {
+            sendAck();
+            break;
+          }
+          // the FIN takes up one sequence number
+          ackNum = p.seqNum + 1;
+          sendAck();
+          closeReceiveStream();
           changeState(CLOSE_WAIT);
           break;
         }
 
-        else if (p.data != null && p.data.length > 0) {
-          try {
-            // Push data to Application
-            appOS.write(p.data);
-            appOS.flush();
-          } catch (IOException e) {
-            e.printStackTrace();
-          }
-        
-          // Create and send ACK
-          packetLength = p.data != null? p.data.length : 20;
-          ackNum = (p.seqNum + packetLength) % TCPPacket.MAX_PACKET_SIZE;
-          TCPPacket ack = new TCPPacket(localport, port, seqNum, ackNum, true, false, false, 1000, new byte[0]);
-          TCPWrapper.send(ack, address);
+        else if (p.dataLength() > 0) {
+          // Always acknowledge with the next byte we expect, so a gap is
+          // reported back to the sender instead of being skipped
+          receiveSegment(p);
         }
         // stay on ESTABLISHED state
         break;
+
+      // Remote host has closed its side, but we may still be sending
+      // Keep processing acknowledgements for our outstanding data
+      case CLOSE_WAIT:
+        if (p.ackFlag) {
+          processAck(p);
+        }
+        // Our ACK of the remote host's FIN was lost; acknowledge it again
+        if (p.finFlag && p.seqNum + 1 == ackNum) {
+          sendAck();
+        }
+        break;
       
       // Remote host has closed and received an ACK, local host has sent its FIN and awaits an ACK
       // Local host receives and ACK and switches to TIME_WAIT state
       case LAST_ACK:
-        // Check if it is an ACK
-        if(p.ackFlag) {
+        // The remote host resent its FIN, so our ACK of it was lost
+        if (p.finFlag && p.seqNum + 1 == ackNum) {
+          sendAck();
+        }
+        // Check if it is an ACK of our FIN, which takes up seqNum
+        if(p.ackFlag && TCPSeq.after(p.ackNum, seqNum)) {
+          cancelTimer();
           changeState(TIME_WAIT);
           break;
         }
-        System.err.println("DEBUG: Packet received during state LAST_ACK but it was not a ACK packet.");
+        System.err.println("DEBUG: Packet received during state LAST_ACK but it was not an ACK of our FIN.");
         break;
 
       // Local host has sent a FIN to the remote host and is awaiting a FIN
       // If the local host receives a FIN, send ACK and switch to CLOSING state
       // If the local host receives an ACK, switch to FIN_WAIT_2 state
       case FIN_WAIT_1:
-        // Check if the packet is a FIN
-        if(p.finFlag) {
-          changeState(CLOSING);
-          // This means the remote host has also called close() and now awaits an ACK
-          packetLength = p.data != null? p.data.length : 20;
-          ackNum = (p.seqNum + packetLength) % TCPPacket.MAX_PACKET_SIZE;
-          TCPPacket ack = new TCPPacket(localport, port, seqNum, ackNum, true, false, false, 1000, new byte[0]);
-          TCPWrapper.send(ack, address);
-          break;
+        // Acknowledgements come first: the segment that carries the
+        // remote host's data or FIN may acknowledge our FIN as well
+        if (p.ackFlag) {
+          processAck(p);
+          // Check if the packet is an ACK for our FIN; acknowledgements
+          // for the data before it carry seqNum itself
+          if (TCPSeq.after(p.ackNum, seqNum)) {
+            // This means the remote host has received the FIN and is currently calling close()
+            cancelTimer();
+            changeState(FIN_WAIT_2);
+          }
         }
 
-        // Check if the packet is an ACK
-        else if(p.ackFlag) {
-          // This means the remote host has received the FIN and is currently calling close()
-          changeState(FIN_WAIT_2);
-          break;
+        // The remote host may still be sending data our way
+        if (p.dataLength() > 0) {
+          receiveSegment(p);
         }
 
-        // Otherwise, ignore packet
-        System.err.println("DEBUG: Packet received during state FIN_WAIT_1 but it was not a FIN or an ACK packet.");
+        // Check if the packet carries a FIN that follows all of the data
+        if (p.finFlag && p.seqNum + p.dataLength() == ackNum) {
+          // This means the remote host has also called close() and now awaits an ACK
+          // the FIN takes up one sequence number
+          ackNum = ackNum + 1;
+          sendAck();
+          closeReceiveStream();
+          changeState(current_state.equals(FIN_WAIT_2) ? TIME_WAIT : CLOSING);
+        }
         break;
       
       // Local host has sent a FIN and received an ACK and now waits for remote host to close and send a FIN
       // Local host receives a FIN and sends an ACK and switches to TIME_WAIT state
       case FIN_WAIT_2:
-        // Check if the packet is a FIN
-        if (p.finFlag) {
-          ackNum = (p.seqNum + 20) % TCPPacket.MAX_PACKET_SIZE;
-          TCPPacket ack = new TCPPacket(localport, port, seqNum,ackNum, true, false, false, 1000, new byte[0]);
-          TCPWrapper.send(ack, this.address);
+        // The remote host may still be sending data our way
+        if (p.dataLength() > 0) {
+          receiveSegment(p);
+        }
+
+        // Check if the packet carries a FIN that follows all of the data
+        if (p.finFlag && p.seqNum + p.dataLength() == ackNum) {
+          // the FIN takes up one sequence number
+          ackNum = ackNum + 1;
+          sendAck();
+          closeReceiveStream();
           changeState(TIME_WAIT);
           break;
         }
 
         // Otherwise ignore the packet
-        if (!p.finFlag) {
+        if (!p.finFlag && p.dataLength() == 0) {
           System.err.println("DEBUG: Packet received during state FIN_WAIT_2 but it was not a FIN packet.");
         }
         break;
+      // Our ACK of the remote host's FIN was lost and the FIN resent;
+      // acknowledge it again and wait the full TIME_WAIT delay anew
       case TIME_WAIT:
         if (p.finFlag) {
-          ackNum = (p.seqNum + 1) % TCPPacket.MAX_PACKET_SIZE;
-          TCPPacket ack = new TCPPacket(localport, port, seqNum, ackNum, true, false, false, 1000, new byte[0]);
-          TCPWrapper.send(ack, this.address);
+          sendAck();
           System.out.println("ACK packet sent for FIN to " + this.address);
-          changeState(CLOSED);
+          createTimerTask(timeWaitDelay, TCPTimerTask.TIME_WAIT);
         }
         break;
 
       case CLOSING:
-        if (p.ackFlag) {
+        if (p.ackFlag && TCPSeq.after(p.ackNum, seqNum)) {
           changeState(TIME_WAIT);
         }
     }
   }
 
+  /**
+   * Starts the thread that moves data written by the application into
+   * segments. Up to sendWindow segments may be unacknowledged at once;
+   * the thread blocks once the window is full and is woken by
+   * processAck(). When the application closes its output stream the
+   * remaining data is drained and a FIN is sent.
+   */
+  private void startSender() {
+    sndUna = seqNum;
+    Thread sender = new Thread(() -> {
+      // each segment is put together in a pooled buffer, which its packet
+      // holds until the segment is acknowledged
+      TCPBufferPool.PooledBuffer segment = TCPBufferPool.getSharedHeap().acquire(sendMss);
+      byte[] buf = segment.buffer.array();
+      int l;
+      try {
+        while ((l = sendBuffer.read(buf, 0, sendMss)) != -1) {
+          // Keep to the packet rate here, outside the monitor, rather
+          // than queueing a window's worth of segments behind it
+          TCPWrapper.awaitTurn();
+          synchronized (this) {
+            l = fillSegment(buf, l, sendMss);
+            // Respect our own segment limit, the congestion window and
+            // the receiver's advertised window; with nothing in flight one
+            // segment is always allowed, but into a closed window only
+            // once the persist timer says to probe it. During fast
+            // recovery every duplicate ACK means a segment has left the
+            // network, so the segment limit is inflated by one for each
+            while ((unacked.size() >= sendWindow + (inRecovery ? dupAcks : 0)
+                    || (!unacked.isEmpty()
+                        && seqNum - sndUna + l > Math.min(sndWnd, cc.getCwnd()))
+                    || (unacked.isEmpty() && sndWnd == 0 && !windowProbe))
+                   && canSend()) {
+              if (unacked.isEmpty() && sndWnd == 0 && persistTimer == null) {
+                persistTimer = new TCPTimerTask(TCPTimerWheel.getShared(), rtt.getRTO(), this, TCPTimerTask.PERSIST);
+              }
+              wait();
+            }
+            windowProbe = false;
+            if (persistTimer != null) {
+              persistTimer.cancel();
+              persistTimer = null;
+            }
+            if (!canSend()) {
+              break;
+            }
+            // the packet takes the buffer over, the next segment gets its own
+            TCPPacket dataPacket = TCPPacket.obtain(localport, port, seqNum, ackNum, true, false, false, receiveWindow());
+            dataPacket.setData(segment, l);
+            segment = TCPBufferPool.getSharedHeap().acquire(sendMss);
+            buf = segment.buffer.array();
+            unacked.addLast(new Segment(dataPacket, seqNum, l));
+            seqNum = seqNum + l;
+            TCPWrapper.send(dataPacket, this.address);
+            ackSent(); // the segment carries our ACK
+            if (unacked.size() == 1) {
+              createTimerTask(rtt.getRTO(), dataPacket);
+            }
+          }
+        }
+        synchronized (this) {
+          // Everything is handed to the network; send our FIN once the
+          // peer holds all of the data
+          while (!unacked.isEmpty() && canSend()) {
+            wait();
+          }
+          senderDone = true;
+          if (canSend()) {
+            TCPPacket finPacket = new TCPPacket(localport, port, seqNum, ackNum, true, false, true, receiveWindow(), new byte[0]);
+            sendPacketOnTimer(finPacket);
+            System.out.println("FIN packet sent to " + this.address);
+            changeState(current_state.equals(ESTABLISHED) ? FIN_WAIT_1 : LAST_ACK);
+          }
+          notifyAll();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      } catch (InterruptedException e) {
+        System.err.println("ERROR: Sender Interrupted");
+      } finally {
+        segment.release();
+      }
+    });
+    sender.setDaemon(true);
+    sender.start();
+  }
+
+  /**
+   * Coalesce small writes of the application into one segment. Whatever
+   * has been written already is added to buf at once. Then, following
+   * Nagle's algorithm, a partial segment is held back while earlier data
+   * is unacknowledged, until it fills up, everything is acknowledged or
+   * the application closes its stream, unless TCP_NODELAY is set.
+   * @param buf the segment being put together
+   * @param l bytes already in buf
+   * @param size bytes in a full segment, at most buf.length
+   * @return bytes in buf now
+   */
+  private int fillSegment(byte[] buf, int l, int size) throws IOException, InterruptedException {
+    while (l < size) {
+      int more = Math.min(sendBuffer.available(), size - l);
+      if (more > 0) {
+        l += sendBuffer.read(buf, l, more);
+      } else if (!noDelay && !unacked.isEmpty() && !appClosed && canSend()) {
+        wait();
+      } else {
+        break;
+      }
+    }
+    return l;
+  }
+
+  /**
+   * Called after the application wrote to, or closed, appOS.
+   */
+  private synchronized void dataWritten() {
+    notifyAll();
+  }
+
+  /**
+   * @return the stream the application reads ring through, which tells
+   *         dataRead() about every read
+   */
+  private InputStream readStream(TCPByteRing ring) {
+    return new FilterInputStream(ring.getInputStream()) {
+      public int read() throws IOException {
+        int b = super.read();
+        dataRead();
+        return b;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        dataRead();
+        return n;
+      }
+
+      public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        dataRead();
+        return skipped;
+      }
+    };
+  }
+
+  /**
+   * Called after the application read from appIS. Once the window has
+   * opened by a full segment, or by half the receive buffer if that is
+   * less, since it was last advertised, a window update is sent at once
+   * instead of with the next ACK; a sender held back by a small or a
+   * closed window may not send again until it hears of it. Smaller
+   * openings wait, so the window is not offered a few bytes at a time
+   * (receiver side silly window avoidance, RFC 1122 4.2.3.3).
+   */
+  private void dataRead() {
+    TCPByteRing ring = recvBuffer;
+    int threshold = Math.min(mss, ring.capacity() / 2);
+    // the window is never more than the free space, so most reads are
+    // done with here without taking the monitor
+    if (Math.min(ring.free(), 0xffff) - advertisedWindow < threshold) {
+      return;
+    }
+    synchronized (this) {
+      boolean receiving = current_state.equals(ESTABLISHED)
+        || current_state.equals(FIN_WAIT_1) || current_state.equals(FIN_WAIT_2);
+      if (receiving && windowSpace() - advertisedWindow >= threshold) {
+        sendAck();
+      }
+    }
+  }
+
+  /**
+   * Settle the size of the segments we send once the handshake told us
+   * what the remote host accepts, and restart congestion control, which
+   * counts in segments, with it.
+   * @param peerMss the MSS option of the remote host's SYN, 0 if none
+   */
+  private void setSendMss(int peerMss) {
+    sendMss = Math.min(mss, peerMss > 0 ? peerMss : DEFAULT_PEER_MSS);
+    try {
+      cc = CongestionControl.create(cc.getName(), sendMss);
+    } catch (SocketException e) {
+      // the name was accepted when cc was created
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Whether the connection is in a state where we may still send data.
+   */
+  private boolean canSend() {
+    return current_state.equals(ESTABLISHED) || current_state.equals(CLOSE_WAIT);
+  }
+
+  /**
+   * Handle the cumulative acknowledgement carried by p. Segments that are
+   * now fully acknowledged leave the retransmission queue, the
+   * retransmission timer is restarted for the oldest remaining segment,
+   * and the sender thread is woken up since the window has opened.
+   * @param p The packet carrying the acknowledgement
+   */
+  private void processAck(TCPPacket p) {
+    int ack = p.ackNum;
+    // ignore old acknowledgements and ones for data we never sent
+    if (TCPSeq.before(ack, sndUna) || TCPSeq.after(ack, seqNum)) {
+      return;
+    }
+    // even a duplicate acknowledgement may carry a window update
+    sndWnd = p.windowSize;
+    if (ack == sndUna) {
+      // A pure ACK that does not move sndUna while data is outstanding
+      // means the receiver got a later segment. The window is not
+      // compared: ours shrinks while out-of-order data is held.
+      if (!unacked.isEmpty() && p.dataLength() == 0
+          && !p.synFlag && !p.finFlag) {
+        dupAcks++;
+        if (dupAcks == DUP_THRESH && !inRecovery && !timeoutRecovery) {
+          // Fast retransmit: resend the missing segment now instead of
+          // waiting for the retransmission timer, then keep new data
+          // flowing while the retransmission is repaired
+          enterRecovery();
+          Segment lost = unacked.getFirst();
+          if (!lost.retransmitted) {
+            retransmit(lost);
+          }
+        } else if (inRecovery) {
+          cc.onDupAck();
+        }
+      }
+    }
+    else {
+      int acked = ack - sndUna;
+      sndUna = ack;
+      Segment newest = null;
+      while (!unacked.isEmpty() && TCPSeq.atOrBefore(unacked.getFirst().end, ack)) {
+        newest = unacked.removeFirst();
+        newest.packet.release();
+      }
+      // Karn's algorithm: a retransmitted segment gives no RTT sample
+      long sample = -1;
+      if (newest != null && !newest.resent) {
+        sample = System.currentTimeMillis() - newest.sentAt;
+        rtt.addSample(sample);
+      }
+      if (!inRecovery) {
+        cc.onAck(acked, sample);
+      } else if (TCPSeq.before(ack, recover)) {
+        // Partial ACK: the next hole is lost as well, it is resent below
+        cc.onPartialAck(acked);
+      } else {
+        inRecovery = false;
+        cc.onExitRecovery();
+      }
+      if (timeoutRecovery && TCPSeq.atOrAfter(ack, recover)) {
+        timeoutRecovery = false;
+      }
+      dupAcks = 0;
+      if (unacked.isEmpty()) {
+        cancelTimer();
+      } else {
+        if ((inRecovery || timeoutRecovery) && !unacked.getFirst().retransmitted) {
+          retransmit(unacked.getFirst());
+        }
+        createTimerTask(rtt.getRTO(), unacked.getFirst().packet);
+      }
+    }
+    if (sackEnabled && p.sackBlocks != null) {
+      processSack(p.sackBlocks);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Mark the segments covered by the peer's SACK blocks, then retransmit
+   * the holes between them. A hole is only treated as lost once at least
+   * DUP_THRESH SACKed segments lie above it, so mild reordering does not
+   * cause spurious retransmissions, and each hole is resent at most once
+   * until the retransmission timer fires.
+   * @param blocks SACK blocks as left edge, right edge pairs
+   */
+  private void processSack(int[] blocks) {
+    for (Segment seg : unacked) {
+      for (int i = 0; i + 1 < blocks.length; i += 2) {
+        if (TCPSeq.atOrAfter(seg.seq, blocks[i]) && TCPSeq.atOrBefore(seg.end, blocks[i + 1])) {
+          seg.sacked = true;
+          break;
+        }
+      }
+    }
+
+    int sackedAbove = 0;
+    for (Iterator<Segment> it = unacked.descendingIterator(); it.hasNext(); ) {
+      Segment seg = it.next();
+      if (seg.sacked) {
+        sackedAbove++;
+      } else if (sackedAbove >= DUP_THRESH && !seg.retransmitted) {
+        if (!inRecovery && !timeoutRecovery) {
+          enterRecovery();
+        }
+        retransmit(seg);
+      }
+    }
+  }
+
+  /**
+   * A loss was detected; reduce the congestion window once and stay in
+   * recovery until everything sent so far has been acknowledged.
+   */
+  private void enterRecovery() {
+    inRecovery = true;
+    recover = seqNum;
+    cc.onEnterRecovery(seqNum - sndUna);
+  }
+
+  /**
+   * Resend a segment considered lost, outside of the retransmission timer.
+   * @param seg The segment to resend
+   */
+  private void retransmit(Segment seg) {
+    seg.retransmitted = true;
+    seg.resent = true;
+    TCPWrapper.send(seg.packet, this.address);
+  }
+
+  /**
+   * Place the payload of p in the receive buffer. Data at ackNum goes
+   * straight from the packet to the application, followed by any
+   * buffered segments it makes contiguous; a packet with data further
+   * ahead is held in outOfOrder, its data moved to a buffer of its own
+   * size (see TCPPacket.ownData()), until the gap before it is filled.
+   * Nothing is accepted beyond the space left in the receive buffer,
+   * so handing data to recvBuffer never waits on the application.
+   * @param p The data packet that arrived
+   */
+  private void receiveData(TCPPacket p) {
+    int seq = p.seqNum;
+    int length = p.dataLength();
+    int end = seq + length;
+    if (TCPSeq.atOrBefore(end, ackNum)) {
+      // everything in this segment was already received
+      return;
+    }
+    if (TCPSeq.after(seq, ackNum)) {
+      if (end - ackNum > recvBuffer.free() - outOfOrderBytes) {
+        return;
+      }
+      lastOutOfOrderSeq = seq;
+      TCPPacket held = outOfOrder.get(seq);
+      if (held == null || held.dataLength() < length) {
+        outOfOrderBytes += length - (held == null ? 0 : held.dataLength());
+        p.retain();
+        p.ownData();
+        outOfOrder.put(seq, p);
+        if (held != null) {
+          held.release();
+        }
+      }
+      return;
+    }
+
+    // In order (possibly overlapping data we already have): deliver it
+    // and everything buffered right behind it, as far as it fits
+    int skip = ackNum - seq;
+    boolean truncated = length - skip > recvBuffer.free();
+    int next = ackNum + p.offerData(recvBuffer, skip);
+    while (!truncated && !outOfOrder.isEmpty()) {
+      Map.Entry<Integer, TCPPacket> first = outOfOrder.firstEntry();
+      int heldSeq = first.getKey();
+      TCPPacket held = first.getValue();
+      if (TCPSeq.after(heldSeq, next)) {
+        break;
+      }
+      int extra = heldSeq + held.dataLength() - next;
+      if (extra > 0) {
+        if (extra > recvBuffer.free()) {
+          break;
+        }
+        next += held.offerData(recvBuffer, held.dataLength() - extra);
+      }
+      outOfOrder.remove(heldSeq);
+      outOfOrderBytes -= held.dataLength();
+      held.release();
+    }
+    ackNum = next;
+  }
+
+  /**
+   * The remote host sent its FIN, so no more data will follow; let the
+   * application see the end of the stream.
+   */
+  private void closeReceiveStream() {
+    recvBuffer.closeWrite();
+  }
+
+  /**
+   * The window to advertise, remembered as advertised for dataRead().
+   */
+  private int receiveWindow() {
+    advertisedWindow = windowSpace();
+    return advertisedWindow;
+  }
+
+  /**
+   * @return the free space left in the receive buffer once out-of-order
+   *         data, which will take its place, is accounted for
+   */
+  private int windowSpace() {
+    int free = recvBuffer.free() - outOfOrderBytes;
+    return Math.max(0, Math.min(free, 0xffff));
+  }
+
+  /**
+   * Send a pure acknowledgement for everything received so far, telling
+   * the peer which out-of-order data we hold if SACK was negotiated.
+   */
+  private void sendAck() {
+    TCPPacket ack = TCPPacket.obtain(localport, port, seqNum, ackNum, true, false, false, receiveWindow());
+    if (sackEnabled && !outOfOrder.isEmpty()) {
+      ack.sackBlocks = sackBlocks();
+    }
+    TCPWrapper.send(ack, address);
+    ack.release();
+    ackSent();
+  }
+
+  /**
+   * Pass a data segment to receiveData() and acknowledge it. Only
+   * in-order data that arrives while no gap is open may wait for its
+   * ACK: every second such segment is acknowledged at once, a single
+   * one after ACK_DELAY unless data we send carries the ACK first.
+   * Anything else is acknowledged right away, so that the sender hears
+   * about gaps and filled gaps without delay.
+   */
+  private void receiveSegment(TCPPacket p) {
+    int before = ackNum;
+    boolean gap = !outOfOrder.isEmpty();
+    receiveData(p);
+    if (ackNum == before || gap || !outOfOrder.isEmpty() || ++unackedSegments >= 2) {
+      sendAck();
+    } else if (delayedAckTimer == null) {
+      delayedAckTimer = new TCPTimerTask(TCPTimerWheel.getShared(), ACK_DELAY, this, TCPTimerTask.DELAYED_ACK);
+    }
+  }
+
+  /**
+   * Note that a packet carrying our current ackNum went out, so nothing
+   * is left waiting for an acknowledgement.
+   */
+  private void ackSent() {
+    unackedSegments = 0;
+    if (delayedAckTimer != null) {
+      delayedAckTimer.cancel();
+      delayedAckTimer = null;
+    }
+  }
+
+  /**
+   * Build the SACK blocks describing outOfOrder. Adjacent segments are
+   * merged into one block, and the block holding the most recently
+   * received segment goes first as RFC 2018 asks.
+   */
+  private int[] sackBlocks() {
+    LinkedList<int[]> ranges = new LinkedList<>();
+    int[] current = null;
+    for (Map.Entry<Integer, TCPPacket> e : outOfOrder.entrySet()) {
+      int left = e.getKey();
+      int right = left + e.getValue().dataLength();
+      if (current != null && TCPSeq.atOrBefore(left, current[1])) {
+        if (TCPSeq.after(right, current[1])) {
+          current[1] = right;
+        }
+        continue;
+      }
+      current = new int[] {left, right};
+      if (TCPSeq.between(lastOutOfOrderSeq, left, right)) {
+        ranges.addFirst(current);
+      } else {
+        ranges.addLast(current);
+      }
+    }
+    int count = Math.min(ranges.size(), TCPPacket.MAX_SACK_BLOCKS);
+    int[] blocks = new int[count * 2];
+    for (int i = 0; i < count; i++) {
+      blocks[2 * i] = ranges.get(i)[0];
+      blocks[2 * i + 1] = ranges.get(i)[1];
+    }
+    return blocks;
+  }
+
   /**
    * 
    */
@@ -364,7 +922,18 @@ class StudentSocketImpl extends BaseSocketImpl {
     TCPWrapper.send(p, this.address);
     System.out.println("DEBUG: Packet sent on timer.");
     // Create and schedule a timer for retransmission
-    createTimerTask(TIMEOUT, p);
+    createTimerTask(rtt.getRTO(), p);
+  }
+
+  /**
+   * Feed the round trip of the handshake to the RTT estimator, unless our
+   * SYN had to be retransmitted.
+   */
+  private void sampleHandshake() {
+    if (handshakeSentAt != 0) {
+      rtt.addSample(System.currentTimeMillis() - handshakeSentAt);
+      handshakeSentAt = 0;
+    }
   }
 
   /**
@@ -375,50 +944,113 @@ class StudentSocketImpl extends BaseSocketImpl {
     String previousState = this.current_state;
     this.current_state = newState;
     System.out.println("!!! " + previousState + "->" + newState);
+    if (newState.equals(TIME_WAIT)) {
+      // Keep the connection around so that late packets of it are
+      // recognized, and closes it once the delay is over
+      createTimerTask(timeWaitDelay, TCPTimerTask.TIME_WAIT);
+    }
+    else if (newState.equals(CLOSED) && !previousState.equals(CLOSED)) {
+      releaseConnection();
+    }
     notifyAll();
   }
 
-  private boolean checkOrder(int newSeq, int newAck) {
-    // We assume that seqNum is updated? Add prevPackageSize
-    if (this.ackNum == newSeq && this.seqNum == newAck){
-      return true;
+  /**
+   * Remove the connection from the Demultiplexer and give back its local
+   * port if we picked it, so that both can be used by new connections.
+   * Packets still queued for sending or reassembly go back to the pool,
+   * and timers still pending are cancelled.
+   */
+  private void releaseConnection() {
+    cancelTimer();
+    if (persistTimer != null) {
+      persistTimer.cancel();
+      persistTimer = null;
     }
-    else {
-      return false;
+    if (delayedAckTimer != null) {
+      delayedAckTimer.cancel();
+      delayedAckTimer = null;
+    }
+    for (Segment seg : unacked) {
+      seg.packet.release();
+    }
+    unacked.clear();
+    for (TCPPacket held : outOfOrder.values()) {
+      held.release();
+    }
+    outOfOrder.clear();
+    outOfOrderBytes = 0;
+    if (address != null) {
+      try {
+        D.unregisterConnection(address, localport, port, this);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    if (ownsLocalPort) {
+      D.releasePort(localport);
+      ownsLocalPort = false;
     }
   }
-  
+
+  /**
+   * Starts listening on localport: SYNs to it are answered by a
+   * TCPListener, which queues up to backlog completed handshakes for
+   * acceptConnection() to pick up.
+   * @param backlog the length of the accept queue
+   * @exception IOException if something already listens on the port
+   */
+  protected synchronized void listen(int backlog) throws IOException {
+    listener = new TCPListener(localport, backlog, receiveWindow(), mss);
+    D.registerListener(localport, listener);
+    changeState(LISTEN);
+  }
+
   /** 
    * Waits for an incoming connection to arrive to connect this socket to
    * Ultimately this is called by the application calling 
    * ServerSocket.accept(), but this method belongs to the Socket object 
    * that will be returned, not the listening ServerSocket.
    * Note that localport is already set prior to this being called.
+   * The handshake was completed by the listener on localport; this
+   * socket takes the connection over, along with anything the remote
+   * host sent before it was accepted.
    */
-  public synchronized void acceptConnection() {
-    try {
-      this.D.registerListeningSocket(localport, this);
-      changeState(LISTEN);
-      // System.out.println("DEBUG: current_state changed to " + LISTEN + " with localport " + localport);
-
-      long timeStart = System.currentTimeMillis();
-      long timeout = 10000;
-
-      while (!current_state.equals(ESTABLISHED) && !current_state.equals(SYN_RCVD)) {
-        long elapsed = System.currentTimeMillis() - timeStart;
-        long timeLeft = timeout - elapsed;
-        if (timeLeft <= 0) {
-          throw new IOException("TCP Timeout from connectiong waiting to be established.");
-        }
-        try {
-          wait();
-        } catch (InterruptedException e) {
-          throw new IOException("ERROR: Connection Interrupted", e);
+  public void acceptConnection() throws IOException {
+    TCPListener l = D.getListener(localport);
+    if (l == null) {
+      throw new SocketException("Socket is not listening");
+    }
+    TCPListener.Handshake h = l.accept();
+    synchronized (this) {
+      this.address = h.remote;
+      this.port = h.remotePort;
+      this.seqNum = h.iss + 1;
+      this.ackNum = h.irs + 1;
+      this.sndWnd = h.sndWnd;
+      this.sackEnabled = h.sackPermitted;
+      setSendMss(h.mss);
+      if (h.rttSample >= 0) {
+        rtt.addSample(h.rttSample);
+      }
+      try {
+        D.registerConnection(address, localport, port, this);
+      } catch (IOException e) {
+        // the connection is dropped, and with it what the listener kept
+        for (TCPPacket p : l.accepted(h)) {
+          p.release();
         }
+        throw e;
+      }
+      List<TCPPacket> early = l.accepted(h);
+      changeState(ESTABLISHED);
+      startSender();
+      // still holding the monitor: packets the lanes deliver from now on
+      // wait until the ones that came before registration are processed
+      for (TCPPacket p : early) {
+        receivePacket(p);
+        p.release();
       }
-      // System.out.println("DEBUG: Connection established");
-    } catch (IOException e) {
-      e.printStackTrace();
     }
   }
 
@@ -461,16 +1093,24 @@ class StudentSocketImpl extends BaseSocketImpl {
    * @exception  IOException  if an I/O error occurs when closing this socket.
    */
   public synchronized void close() throws IOException {
-    if (this.current_state.equals(ESTABLISHED) || this.current_state.equals(CLOSE_WAIT)){
-      TCPPacket finPacket = new TCPPacket(localport, port, seqNum, ackNum, false, false, true, 1000, new byte[0]);
-      TCPWrapper.send(finPacket, this.address);
-      System.out.println("FIN packet sent to " + this.address);
-
+    if (listener != null) {
+      D.unregisterListener(localport, listener);
+      listener.close();
+      listener = null;
+      changeState(CLOSED);
+      return;
     }
-    if (this.current_state.equals(ESTABLISHED)){
-      changeState(FIN_WAIT_1);
-    } else if (this.current_state.equals(CLOSE_WAIT)) {
-      changeState(LAST_ACK);
+    if (canSend()) {
+      // The sender thread drains what the application has written and
+      // then sends our FIN, moving us to FIN_WAIT_1 or LAST_ACK
+      appOS.close();
+      while (!senderDone && canSend()) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          throw new IOException("ERROR: Connection Interrupted", e);
+        }
+      }
     }
     long timeStart = System.currentTimeMillis();
     long timeout = 10000;
@@ -490,7 +1130,8 @@ class StudentSocketImpl extends BaseSocketImpl {
   }
 
   /** 
-   * create TCPTimerTask instance, handling tcpTimer creation
+   * create TCPTimerTask instance on the shared timer wheel, replacing
+   * the one in tcpTimer
    * @param delay time in milliseconds before call
    * @param ref generic reference to be returned to handleTimer
    */
@@ -500,38 +1141,192 @@ class StudentSocketImpl extends BaseSocketImpl {
       tcpTimer.cancel();
     }
     
-    // Create new timer
-    tcpTimer = new Timer();
+    // Create, schedule and return new TCPTimerTask
+    tcpTimer = new TCPTimerTask(TCPTimerWheel.getShared(), delay, this, ref);
+    return tcpTimer;
+  }
 
-    // Create and return new TCPTimerTask 
-    return new TCPTimerTask(tcpTimer, delay, this, ref);
+  /**
+   * cancel the running timer, if any
+   */
+  private void cancelTimer() {
+    if (tcpTimer != null) {
+      tcpTimer.cancel();
+      tcpTimer = null;
+    }
   }
 
 
   /**
    * handle timer expiration (called by TCPTimerTask)
+   * @param timer The timer that expired
    * @param ref Generic reference that can be used by the timer to return 
    * information.
    */
-  public synchronized void handleTimer(Object ref){
-    if (ref != null) {
+  public synchronized void handleTimer(TCPTimerTask timer, Object ref){
+    // A timer may expire while the packet that cancels or replaces it is
+    // being handled; once it gets the monitor it is stale and must not
+    // resend a SYN or FIN, or cancel the timer that replaced it
+    if (timer != tcpTimer && timer != persistTimer && timer != delayedAckTimer) {
+      return;
+    }
+    if (ref == TCPTimerTask.PERSIST) {
+      // Nothing was acknowledged or sent for a while and the window is
+      // still closed; let the sender probe it with one segment
+      persistTimer = null;
+      windowProbe = true;
+      notifyAll();
+    }
+    else if (ref == TCPTimerTask.DELAYED_ACK) {
+      delayedAckTimer = null;
+      sendAck();
+    }
+    else if (ref instanceof TCPPacket) {
+      TCPPacket p = (TCPPacket)ref;
+      // The retransmission timer expired; holes already resent may have
+      // been lost again, so allow SACK recovery to resend them
+      for (Segment seg : unacked) {
+        seg.retransmitted = false;
+      }
+      if (!unacked.isEmpty()) {
+        unacked.getFirst().resent = true;
+      }
+      handshakeSentAt = 0;
+      // A timeout ends any fast recovery in progress and, for data,
+      // means the network is congested enough to start over
+      inRecovery = false;
+      dupAcks = 0;
+      if (!unacked.isEmpty()) {
+        cc.onTimeout(seqNum - sndUna);
+        // Everything outstanding is presumed lost. Only the oldest
+        // segment is resent now; each ACK that follows resends the next
+        // one, so the rest is not left waiting for further timeouts
+        timeoutRecovery = true;
+        recover = seqNum;
+      }
+      // Back off before resending, the network may be congested
+      rtt.backoff();
       // Resend packet
-      sendPacketOnTimer((TCPPacket)ref);
+      sendPacketOnTimer(p);
     }
     else {
-      // this must run only once the last timer (30 second timer) has expired
+      // this must run only once the last timer (TIME_WAIT) has expired
       if (tcpTimer != null) {
         tcpTimer.cancel();
         tcpTimer = null;
       }
+      changeState(CLOSED);
 
-      try {
-        if (appIS != null) appIS.close();
-        if (appOS != null) appOS.close();
-      } catch (IOException e) {
-        System.err.println("Error: Issue with closing streams: " + e.getMessage());
-        e.printStackTrace();
-      }
+      recvBuffer.closeRead();
+      sendBuffer.closeWrite();
+    }
+  }
+
+  /**
+   * Selects the congestion control algorithm with TCP_CONGESTION, taking
+   * its name as a String. The new algorithm starts from its initial
+   * window. TCP_NODELAY takes a Boolean and turns Nagle's algorithm off
+   * when true. SO_RCVBUF and SO_SNDBUF take the size of the receive and
+   * send buffers as an Integer, at least one segment of our MSS; they
+   * can only be changed before the socket connects or listens. Other
+   * options are passed on to BaseSocketImpl.
+   */
+  public synchronized void setOption(int optID, Object value) throws SocketException {
+    switch (optID) {
+      case TCP_CONGESTION:
+        if (!(value instanceof String)) {
+          throw new SocketException("TCP_CONGESTION takes the algorithm name");
+        }
+        cc = CongestionControl.create((String) value, sendMss);
+        notifyAll();
+        break;
+      case TCP_NODELAY:
+        if (!(value instanceof Boolean)) {
+          throw new SocketException("TCP_NODELAY takes a Boolean");
+        }
+        noDelay = (Boolean) value;
+        // a segment held back for Nagle may go now
+        notifyAll();
+        break;
+      case SO_RCVBUF:
+        recvBuffer = new TCPByteRing(bufferSize(optID, value));
+        appIS = readStream(recvBuffer);
+        break;
+      case SO_SNDBUF:
+        sendBuffer = new TCPByteRing(bufferSize(optID, value));
+        break;
+      default:
+        super.setOption(optID, value);
+    }
+  }
+
+  /**
+   * Checks a new size for the receive or send buffer; a buffer is only
+   * replaced while it is still unused.
+   * @return the size in bytes
+   */
+  private int bufferSize(int optID, Object value) throws SocketException {
+    String name = optID == SO_RCVBUF ? "SO_RCVBUF" : "SO_SNDBUF";
+    if (!(value instanceof Integer)) {
+      throw new SocketException(name + " takes the size in bytes");
+    }
+    if (!current_state.equals(CLOSED) || listener != null) {
+      throw new SocketException(name + " must be set before the socket connects or listens");
+    }
+    int size = (Integer) value;
+    if (size < mss || size > TCPByteRing.MAX_CAPACITY) {
+      throw new SocketException(name + " must be between " + mss + " and " + TCPByteRing.MAX_CAPACITY);
+    }
+    return size;
+  }
+
+  /**
+   * Reads the RTT estimator state with TCP_RTO, TCP_SRTT and TCP_RTTVAR,
+   * all in milliseconds; SRTT is -1 before the first sample. TCP_CWND
+   * gives the congestion window in bytes and TCP_CONGESTION the name of
+   * the algorithm. TCP_NODELAY tells whether Nagle's algorithm is off.
+   * SO_RCVBUF and SO_SNDBUF give the buffer sizes. Other options are
+   * passed on to BaseSocketImpl.
+   */
+  public synchronized Object getOption(int optID) throws SocketException {
+    switch (optID) {
+      case TCP_CONGESTION:
+        return cc.getName();
+      case TCP_CWND:
+        return Integer.valueOf(cc.getCwnd());
+      case TCP_RTO:
+        return Integer.valueOf((int) rtt.getRTO());
+      case TCP_SRTT:
+        return Integer.valueOf((int) rtt.getSRTT());
+      case TCP_RTTVAR:
+        return Integer.valueOf((int) rtt.getRTTVAR());
+      case TCP_NODELAY:
+        return Boolean.valueOf(noDelay);
+      case SO_RCVBUF:
+        return Integer.valueOf(recvBuffer.capacity());
+      case SO_SNDBUF:
+        return Integer.valueOf(sendBuffer.capacity());
+      default:
+        return super.getOption(optID);
+    }
+  }
+
+  /**
+   * A data segment that has been sent but not yet acknowledged.
+   */
+  private static class Segment {
+    final TCPPacket packet;
+    final int seq;
+    final int end; // sequence number following the last byte
+    boolean sacked;        // the peer reported holding this segment
+    boolean retransmitted; // resent as a hole since the last timeout
+    boolean resent;        // ever retransmitted, so not usable for RTT samples
+    final long sentAt = System.currentTimeMillis();
+
+    Segment(TCPPacket packet, int seq, int length) {
+      this.packet = packet;
+      this.seq = seq;
+      this.end = seq + length;
     }
   }
 
@@ -0,0 +1,102 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pools of byte buffers in sizes that are powers of two, for packet
+ * data that outlives a single call: the datagrams the Demultiplexer
+ * receives and the segments a connection keeps until they are
+ * acknowledged.
+ *
+ * A buffer may be used by several holders at once, e.g. a chunk of
+ * received datagrams by every packet read from it, so it counts its
+ * holders. acquire() hands it out with one; each further holder calls
+ * retain() and every holder calls release() when done, the last one
+ * returning it to its pool. A buffer that is never released is simply
+ * garbage collected, but one released too often would be handed out
+ * while still in use.
+ */
+class TCPBufferPool {
+
+  // largest buffer pooled, 2^MAX_SHIFT bytes
+  private static final int MAX_SHIFT = 20;
+  // buffers kept of each size by the shared pools
+  private static final int DEFAULT_CAPACITY = 64;
+
+  private static TCPBufferPool sharedHeap;
+
+  private final boolean direct;
+  private final TCPPool<PooledBuffer>[] sizes; // by log2 of the size
+
+  /**
+   * A buffer from a pool, with a count of its holders.
+   */
+  static final class PooledBuffer {
+    final ByteBuffer buffer;
+    private final TCPBufferPool pool;
+    private final AtomicInteger refs = new AtomicInteger();
+
+    private PooledBuffer(TCPBufferPool pool, int size) {
+      this.pool = pool;
+      this.buffer = pool.direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Adds a holder.
+     */
+    void retain() {
+      refs.incrementAndGet();
+    }
+
+    /**
+     * Removes a holder; the last one gives the buffer back to its pool.
+     */
+    void release() {
+      int left = refs.decrementAndGet();
+      if (left == 0) {
+        pool.sizes[Integer.numberOfTrailingZeros(buffer.capacity())].release(this);
+      } else if (left < 0) {
+        throw new IllegalStateException("buffer released too often");
+      }
+    }
+  }
+
+  /**
+   * @param direct whether the buffers are direct, for I/O, or on the heap
+   * @param capacity the most buffers kept of each size
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  TCPBufferPool(boolean direct, int capacity) {
+    this.direct = direct;
+    this.sizes = new TCPPool[MAX_SHIFT + 1];
+    for (int i = 0; i <= MAX_SHIFT; i++) {
+      int size = 1 << i;
+      sizes[i] = new TCPPool<>(capacity, () -> new PooledBuffer(this, size));
+    }
+  }
+
+  /**
+   * @return the pool of heap buffers shared by all connections
+   */
+  static synchronized TCPBufferPool getSharedHeap() {
+    if (sharedHeap == null) {
+      sharedHeap = new TCPBufferPool(false, DEFAULT_CAPACITY);
+    }
+    return sharedHeap;
+  }
+
+  /**
+   * Takes a buffer with room for at least size bytes, cleared and with
+   * its limit at size, and the caller as its only holder.
+   * @param size from 1 up to 2^20 bytes
+   */
+  PooledBuffer acquire(int size) {
+    if (size < 1 || size > 1 << MAX_SHIFT) {
+      throw new IllegalArgumentException("cannot pool a buffer of " + size + " bytes");
+    }
+    int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+    PooledBuffer b = sizes[shift].acquire();
+    b.refs.set(1);
+    b.buffer.clear().limit(size);
+    return b;
+  }
+}
@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Byte buffer between one thread that writes and one that reads, such
+ * as the application and the sender thread of a connection, or the
+ * Demultiplexer and the application.
+ *
+ * The bytes live in a ring; the writer only moves the tail and the
+ * reader only moves the head, both volatile counts of the bytes that
+ * went through, so neither side takes a lock. A side that has to wait,
+ * for data or for space, parks and is unparked by the other side as
+ * soon as that changes, instead of polling. Each side must stay on one
+ * thread at a time.
+ */
+class TCPByteRing {
+
+  static final int MAX_CAPACITY = 1 << 30;
+
+  private final byte[] buf;   // a power of two, at least capacity
+  private final int mask;
+  private final int capacity; // most bytes held at once
+  private volatile long head; // bytes read so far
+  private volatile long tail; // bytes written so far
+  private volatile boolean writeClosed; // no more bytes will be written
+  private volatile boolean readClosed;  // nobody reads the bytes anymore
+  private volatile Thread reader;       // parked waiting for bytes
+  private volatile Thread writer;       // parked waiting for space
+
+  /**
+   * @param capacity the most bytes the buffer holds, from 1 up to
+   *        MAX_CAPACITY
+   */
+  TCPByteRing(int capacity) {
+    if (capacity < 1 || capacity > MAX_CAPACITY) {
+      throw new IllegalArgumentException("ring capacity must be between 1 and " + MAX_CAPACITY);
+    }
+    this.capacity = capacity;
+    this.buf = new byte[capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1];
+    this.mask = buf.length - 1;
+  }
+
+  /**
+   * @return the most bytes the buffer holds
+   */
+  int capacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the bytes waiting to be read, 0 once reading is closed
+   */
+  int available() {
+    return readClosed ? 0 : (int) (tail - head);
+  }
+
+  /**
+   * @return the bytes that can be written without waiting
+   */
+  int free() {
+    return capacity - available();
+  }
+
+  /**
+   * Writes as much of b as fits, without waiting. Once reading is closed
+   * the bytes are thrown away.
+   * @return the bytes taken, 0 if writing is closed
+   */
+  int offer(byte[] b, int off, int len) {
+    return offer(ByteBuffer.wrap(b, off, len));
+  }
+
+  /**
+   * Writes as much of the bytes left in src as fits, without waiting,
+   * and moves its position past them. Once reading is closed the bytes
+   * are thrown away.
+   * @return the bytes taken, 0 if writing is closed
+   */
+  int offer(ByteBuffer src) {
+    int n = offer(src, src.position(), src.remaining());
+    src.position(src.position() + n);
+    return n;
+  }
+
+  /**
+   * Writes as much of the len bytes of src starting at index as fits,
+   * without waiting, and without touching src's position or limit. Once
+   * reading is closed the bytes are thrown away.
+   * @return the bytes taken, 0 if writing is closed
+   */
+  int offer(ByteBuffer src, int index, int len) {
+    if (writeClosed) {
+      return 0;
+    }
+    if (readClosed) {
+      return len;
+    }
+    long t = tail;
+    int n = Math.min(len, capacity - (int) (t - head));
+    if (n <= 0) {
+      return 0;
+    }
+    int at = (int) t & mask;
+    int first = Math.min(n, buf.length - at);
+    src.get(index, buf, at, first);
+    src.get(index + first, buf, 0, n - first);
+    tail = t + n;
+    wake(reader);
+    return n;
+  }
+
+  /**
+   * Writes all of b, waiting for space as needed.
+   * @exception IOException if writing or reading is closed, or the
+   *            thread is interrupted
+   */
+  void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (writeClosed) {
+        throw new IOException("Stream closed");
+      }
+      if (readClosed) {
+        throw new IOException("Socket closed");
+      }
+      int n = offer(b, off, len);
+      off += n;
+      len -= n;
+      if (len > 0 && n == 0) {
+        writer = Thread.currentThread();
+        // recheck once visible as waiting, the reader may have just left
+        if (tail - head == capacity && !readClosed && !writeClosed) {
+          LockSupport.park(this);
+        }
+        writer = null;
+        if (Thread.interrupted()) {
+          throw new InterruptedIOException();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads at least one byte into b, waiting for one as needed.
+   * @return the bytes read, or -1 once writing is closed and every byte
+   *         has been read
+   * @exception IOException if reading is closed or the thread is
+   *            interrupted
+   */
+  int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (true) {
+      if (readClosed) {
+        throw new IOException("Stream closed");
+      }
+      long h = head;
+      int n = Math.min(len, (int) (tail - h));
+      if (n > 0) {
+        int at = (int) h & mask;
+        int first = Math.min(n, buf.length - at);
+        System.arraycopy(buf, at, b, off, first);
+        System.arraycopy(buf, 0, b, off + first, n - first);
+        head = h + n;
+        wake(writer);
+        return n;
+      }
+      // tail is read again after writeClosed: bytes may have come last
+      if (writeClosed && tail == h) {
+        return -1;
+      }
+      reader = Thread.currentThread();
+      if (tail == h && !writeClosed && !readClosed) {
+        LockSupport.park(this);
+      }
+      reader = null;
+      if (Thread.interrupted()) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  /**
+   * No more bytes will be written; the reader sees the end once it has
+   * read what is left.
+   */
+  void closeWrite() {
+    writeClosed = true;
+    wake(reader);
+    wake(writer);
+  }
+
+  /**
+   * Nobody reads anymore: what is left is dropped and a waiting writer
+   * fails.
+   */
+  void closeRead() {
+    readClosed = true;
+    wake(writer);
+    wake(reader);
+  }
+
+  /**
+   * @return a stream reading from this buffer; closing it closes
+   *         reading
+   */
+  InputStream getInputStream() {
+    return new InputStream() {
+      private final byte[] one = new byte[1];
+
+      public int read() throws IOException {
+        return TCPByteRing.this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        return TCPByteRing.this.read(b, off, len);
+      }
+
+      public int available() throws IOException {
+        if (readClosed) {
+          throw new IOException("Stream closed");
+        }
+        return TCPByteRing.this.available();
+      }
+
+      public void close() {
+        closeRead();
+      }
+    };
+  }
+
+  private static void wake(Thread t) {
+    if (t != null) {
+      LockSupport.unpark(t);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The Internet checksum of RFC 1071 over TCP segments: the one's
+ * complement of the one's complement sum of the segment as 16-bit
+ * words, with a pseudo-header in front.
+ *
+ * The sum is taken 8 bytes at a time. A one's complement sum does not
+ * care how wide the words are added, as long as the carries come back
+ * in at the bottom, so each long read is added as two 32-bit halves
+ * into a 64-bit total and the total is folded down to 16 bits once at
+ * the end. ByteBuffer.getLong() is a single unaligned load, in either
+ * byte order of the machine, for heap and direct buffers alike.
+ *
+ * The pseudo-header of a real TCP covers both IP addresses as well.
+ * Here the datagram channel is shared by every connection and bound to
+ * the wildcard address, so neither end knows for sure which of its
+ * addresses a datagram leaves from or arrives at; the addresses, like
+ * the ports of the UDP header, are left to the UDP checksum around the
+ * segment. What is summed in is the protocol number and the length of
+ * the segment, which catches a datagram that was cut short.
+ */
+final class TCPChecksum {
+
+  static final int PROTOCOL_TCP = 6;
+
+  // where the checksum sits in the TCP header
+  static final int OFFSET = 16;
+
+  private TCPChecksum() {
+  }
+
+  /**
+   * Adds up length bytes of b starting at offset as big endian 16-bit
+   * words, padding an odd last byte with a zero. The result is not
+   * folded, so sums of parts that start at even offsets of the segment
+   * can be added together.
+   */
+  static long sum(ByteBuffer b, int offset, int length) {
+    long sum = 0;
+    int i = offset;
+    int end = offset + length;
+    for (; i + 8 <= end; i += 8) {
+      long x = b.getLong(i);
+      sum += (x >>> 32) + (x & 0xffffffffL);
+    }
+    if (i + 4 <= end) {
+      sum += b.getInt(i) & 0xffffffffL;
+      i += 4;
+    }
+    if (i + 2 <= end) {
+      sum += b.getShort(i) & 0xffff;
+      i += 2;
+    }
+    if (i < end) {
+      sum += (b.get(i) & 0xff) << 8;
+    }
+    return sum;
+  }
+
+  /**
+   * @return the sum of the pseudo-header for a segment of length bytes
+   */
+  static long pseudoHeader(int length) {
+    return PROTOCOL_TCP + length;
+  }
+
+  /**
+   * @return the checksum for a sum over the pseudo-header and a segment
+   *         whose checksum field was 0. A result of 0 is sent as 0xffff,
+   *         its other form in one's complement, since 0 in the field
+   *         means no checksum was computed.
+   */
+  static int finish(long sum) {
+    int checksum = ~fold(sum) & 0xffff;
+    return checksum == 0 ? 0xffff : checksum;
+  }
+
+  /**
+   * Checks the segment of length bytes starting at offset of b against
+   * the checksum it carries.
+   * @return true if the checksum matches, or is 0 because the sender
+   *         did not compute one
+   */
+  static boolean verify(ByteBuffer b, int offset, int length) {
+    if (length < OFFSET + 2) {
+      return false;
+    }
+    if (b.getShort(offset + OFFSET) == 0) {
+      return true;
+    }
+    // summed with the checksum in it, a good segment adds up to all ones
+    return fold(sum(b, offset, length) + pseudoHeader(length)) == 0xffff;
+  }
+
+  private static int fold(long sum) {
+    while ((sum >>> 16) != 0) {
+      sum = (sum & 0xffff) + (sum >>> 16);
+    }
+    return (int) sum;
+  }
+}
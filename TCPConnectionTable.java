@@ -0,0 +1,195 @@
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Table of connections keyed by remote address, local port and remote
+ * port, packed into one long: the 32 address bits above the two 16 bit
+ * ports. An IPv4 address fits exactly; an IPv6 address contributes its
+ * hash, so entries also keep the address itself and lookups compare it.
+ *
+ * The table uses open addressing with linear probing over immutable
+ * entries. get() takes no lock and allocates nothing, so the receive
+ * path can look up every packet without contending with connections
+ * being opened and closed. putIfAbsent() and remove() claim or clear
+ * a slot with a compare-and-set, so they do not wait for each other
+ * either; only growing the table, which is rare, makes them wait.
+ *
+ * An entry is only ever stored into an empty slot, never into one a
+ * removed entry left behind. Two threads storing the same key
+ * therefore race for the same first empty slot of its probe sequence,
+ * and the loser finds the winner's entry there.
+ */
+class TCPConnectionTable<V> {
+
+  private static final int INITIAL_CAPACITY = 64; // a power of two
+  // left behind by remove() so that probing continues past the slot
+  private static final Entry<Object> REMOVED = new Entry<>(0, null, null);
+
+  private volatile AtomicReferenceArray<Entry<V>> slots =
+      new AtomicReferenceArray<>(INITIAL_CAPACITY);
+  private final AtomicInteger used = new AtomicInteger(); // live and removed entries in slots
+  private final AtomicInteger size = new AtomicInteger(); // live entries
+  // shared by updates of single slots, exclusive while the table grows
+  private final ReentrantReadWriteLock resizeLock = new ReentrantReadWriteLock();
+
+  /**
+   * Packs the parts of a connection into a table key.
+   * @param remote the remote address, or null for a listening port
+   */
+  static long key(InetAddress remote, int localPort, int remotePort) {
+    long addr = remote == null ? 0 : remote.hashCode();
+    return (addr << 32) | ((localPort & 0xffffL) << 16) | (remotePort & 0xffffL);
+  }
+
+  /**
+   * @return the value stored for the connection, or null
+   */
+  V get(InetAddress remote, int localPort, int remotePort) {
+    long key = key(remote, localPort, remotePort);
+    AtomicReferenceArray<Entry<V>> s = slots;
+    int mask = s.length() - 1;
+    for (int i = index(key, mask); ; i = (i + 1) & mask) {
+      Entry<V> e = s.get(i);
+      if (e == null) {
+        return null;
+      }
+      if (e != REMOVED && e.matches(key, remote)) {
+        return e.value;
+      }
+    }
+  }
+
+  /**
+   * Stores a value unless the connection already has one.
+   * @return the value already stored, or null if value was stored
+   */
+  V putIfAbsent(InetAddress remote, int localPort, int remotePort, V value) {
+    long key = key(remote, localPort, remotePort);
+    Entry<V> entry = new Entry<>(key, remote, value);
+    while (true) {
+      resizeLock.readLock().lock();
+      try {
+        AtomicReferenceArray<Entry<V>> s = slots;
+        int mask = s.length() - 1;
+        if ((used.get() + 1) * 4 <= s.length() * 3) {
+          int i = index(key, mask);
+          for (int probes = 0; probes < s.length(); probes++, i = (i + 1) & mask) {
+            Entry<V> e = s.get(i);
+            if (e == null) {
+              if (s.compareAndSet(i, null, entry)) {
+                used.incrementAndGet();
+                size.incrementAndGet();
+                return null;
+              }
+              e = s.get(i);
+            }
+            if (e != REMOVED && e.matches(key, remote)) {
+              return e.value;
+            }
+          }
+        }
+      } finally {
+        resizeLock.readLock().unlock();
+      }
+      // too full, or filled up by concurrent inserts: grow and retry
+      resize();
+    }
+  }
+
+  /**
+   * Removes the connection's value if it is the given one.
+   * @return whether value was removed
+   */
+  boolean remove(InetAddress remote, int localPort, int remotePort, V value) {
+    long key = key(remote, localPort, remotePort);
+    resizeLock.readLock().lock();
+    try {
+      AtomicReferenceArray<Entry<V>> s = slots;
+      int mask = s.length() - 1;
+      for (int i = index(key, mask); ; i = (i + 1) & mask) {
+        Entry<V> e = s.get(i);
+        if (e == null) {
+          return false;
+        }
+        if (e != REMOVED && e.matches(key, remote)) {
+          if (e.value != value || !s.compareAndSet(i, e, removed())) {
+            // another value, or another thread removed it first
+            return false;
+          }
+          size.decrementAndGet();
+          return true;
+        }
+      }
+    } finally {
+      resizeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Rebuilds the table without removed entries, doubling it if it is
+   * more than half full of live ones. Readers keep probing the old
+   * array until the new one is published.
+   */
+  private void resize() {
+    resizeLock.writeLock().lock();
+    try {
+      AtomicReferenceArray<Entry<V>> old = slots;
+      if ((used.get() + 1) * 4 <= old.length() * 3) {
+        return; // another thread already made room
+      }
+      int capacity = old.length();
+      if (size.get() * 2 >= capacity) {
+        capacity *= 2;
+      }
+      AtomicReferenceArray<Entry<V>> s = new AtomicReferenceArray<>(capacity);
+      for (int i = 0; i < old.length(); i++) {
+        Entry<V> e = old.get(i);
+        if (e != null && e != REMOVED) {
+          insert(s, e);
+        }
+      }
+      used.set(size.get());
+      slots = s;
+    } finally {
+      resizeLock.writeLock().unlock();
+    }
+  }
+
+  private static <V> void insert(AtomicReferenceArray<Entry<V>> s, Entry<V> e) {
+    int mask = s.length() - 1;
+    int i = index(e.key, mask);
+    while (s.get(i) != null) {
+      i = (i + 1) & mask;
+    }
+    s.set(i, e);
+  }
+
+  private static int index(long key, int mask) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <V> Entry<V> removed() {
+    return (Entry<V>) REMOVED;
+  }
+
+  private static final class Entry<V> {
+    final long key;
+    final InetAddress remote;
+    final V value;
+
+    Entry(long key, InetAddress remote, V value) {
+      this.key = key;
+      this.remote = remote;
+      this.value = value;
+    }
+
+    boolean matches(long key, InetAddress remote) {
+      return this.key == key
+          && (this.remote == null ? remote == null : this.remote.equals(remote));
+    }
+  }
+}
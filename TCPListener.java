@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The passive side of connection setup for one listening port.
+ *
+ * The listener answers SYNs itself, without a socket of its own for
+ * each connection. A connection whose SYN+ACK has not been acknowledged
+ * yet waits in the SYN queue; once the final ACK arrives it moves to the
+ * accept queue, whose length is the backlog given to listen(). accept()
+ * takes completed handshakes from the accept queue and the accepting
+ * socket carries on from there. Data that arrives for a connection
+ * before it is accepted is kept and handed over along with it.
+ *
+ * With SYN cookies the listener keeps no state for a SYN at all: the
+ * SYN+ACK's sequence number encodes a keyed hash of the connection, the
+ * time, whether SACK was offered and roughly the MSS offered (rounded
+ * down to one of four sizes), and the connection is only set up
+ * when an ACK returns a valid cookie. A flood of SYNs from addresses
+ * that never answer then costs no memory and no timers. The cookie
+ * cannot carry the remote host's window, which is taken from the ACK
+ * instead, and a lost SYN+ACK is not resent; the remote host resends
+ * its SYN. By default cookies are only used while the SYN queue is full.
+ */
+class TCPListener {
+
+  // SYN+ACK retransmissions before a half-open connection is given up
+  private static final int MAX_SYNACK_RETRIES = 5;
+  // segments kept for a connection that has not been accepted yet
+  private static final int MAX_EARLY_PACKETS = 32;
+
+  // when to answer SYNs with cookies instead of queueing them
+  static final String SYN_COOKIES_OFF = "off";
+  static final String SYN_COOKIES_ON_OVERFLOW = "overflow";
+  static final String SYN_COOKIES_ALWAYS = "always";
+  // a cookie is valid in the period it was made and the next one, in ms
+  private static final long COOKIE_PERIOD = 64000;
+  // the MSS sizes a cookie can tell apart
+  private static final int[] COOKIE_MSS = {64, 512, 1460, 8960};
+
+  // half-open connections a listener keeps, and when it uses cookies,
+  // unless configured otherwise (see TCPStart)
+  private static int defaultSynBacklog = 128;
+  private static String defaultSynCookies = SYN_COOKIES_ON_OVERFLOW;
+
+  private final int localPort;
+  private final int backlog;
+  private final int synBacklog;
+  private final int window; // advertised in SYN+ACKs
+  private final int mss;    // advertised in SYN+ACKs
+  private final String synCookies;
+  private final long secret = new SecureRandom().nextLong(); // keys the cookies
+  // every connection of this listener that has not been accepted, by
+  // remote address and port
+  private final TCPConnectionTable<Handshake> pending = new TCPConnectionTable<>();
+  private final LinkedList<Handshake> acceptQueue = new LinkedList<>();
+  private int synQueued; // pending connections still waiting for their ACK
+  private final Random random = new Random();
+  private boolean closed;
+
+  /**
+   * A connection in the SYN queue or the accept queue.
+   */
+  static class Handshake {
+    final InetAddress remote;
+    final int remotePort;
+    final int irs; // the remote host's initial sequence number
+    final int iss; // our initial sequence number
+    final boolean sackPermitted;
+    final int mss; // the remote host's MSS option, 0 if none
+    int sndWnd;
+    boolean established; // the final ACK arrived
+    long synAckSentAt; // 0 once the SYN+ACK was resent
+    long rttSample = -1; // round trip of the handshake, -1 if unknown
+    int retries;
+    TCPTimerWheel.Timeout retransmit;
+    final List<TCPPacket> early = new ArrayList<>();
+
+    Handshake(InetAddress remote, int remotePort, int irs, int iss, boolean sackPermitted, int mss) {
+      this.remote = remote;
+      this.remotePort = remotePort;
+      this.irs = irs;
+      this.iss = iss;
+      this.sackPermitted = sackPermitted;
+      this.mss = mss;
+    }
+  }
+
+  /**
+   * @param localPort the port listened on
+   * @param backlog the length of the accept queue, at least 1
+   * @param window the receive window to advertise
+   * @param mss the largest segment accepted connections accept
+   */
+  TCPListener(int localPort, int backlog, int window, int mss) {
+    this.localPort = localPort;
+    this.backlog = Math.max(backlog, 1);
+    this.synBacklog = defaultSynBacklog;
+    this.synCookies = defaultSynCookies;
+    this.window = window;
+    this.mss = mss;
+  }
+
+  /**
+   * Sets the number of half-open connections new listeners keep; further
+   * SYNs are dropped until a handshake completes or is given up.
+   * @param connections the SYN queue length, at least 1
+   */
+  static void setDefaultSynBacklog(int connections) {
+    if (connections < 1) {
+      throw new IllegalArgumentException("SYN backlog must be at least 1");
+    }
+    defaultSynBacklog = connections;
+  }
+
+  /**
+   * Sets when new listeners answer SYNs with cookies: never, only while
+   * their SYN queue is full, or always.
+   * @param mode SYN_COOKIES_OFF, SYN_COOKIES_ON_OVERFLOW or SYN_COOKIES_ALWAYS
+   */
+  static void setDefaultSynCookies(String mode) {
+    if (!mode.equals(SYN_COOKIES_OFF) && !mode.equals(SYN_COOKIES_ON_OVERFLOW)
+        && !mode.equals(SYN_COOKIES_ALWAYS)) {
+      throw new IllegalArgumentException("unknown SYN cookie mode " + mode);
+    }
+    defaultSynCookies = mode;
+  }
+
+  /**
+   * Called by Demultiplexer for every packet to the listening port that
+   * does not belong to an accepted connection.
+   * @param p The packet that arrived
+   */
+  synchronized void receivePacket(TCPPacket p) {
+    if (closed) {
+      return;
+    }
+    Handshake h = pending.get(p.sourceAddr, localPort, p.sourcePort);
+
+    if (p.rstFlag) {
+      if (h != null && !h.established) {
+        drop(h);
+      }
+      return;
+    }
+
+    if (p.synFlag && !p.ackFlag) {
+      if (h == null) {
+        if (synCookies.equals(SYN_COOKIES_ALWAYS)
+            || (synCookies.equals(SYN_COOKIES_ON_OVERFLOW) && synQueued >= synBacklog)) {
+          int cookie = cookie(p.sourceAddr, p.sourcePort, p.seqNum, cookiePeriod(), p.sackPermitted, cookieMss(p.mss));
+          sendSynAck(p.sourceAddr, p.sourcePort, cookie, p.seqNum, p.sackPermitted);
+          return;
+        }
+        if (synQueued >= synBacklog) {
+          System.err.println("!!! SYN QUEUE FULL, SYN DROPPED");
+          return;
+        }
+        h = new Handshake(p.sourceAddr, p.sourcePort, p.seqNum, random.nextInt(), p.sackPermitted, p.mss);
+        pending.putIfAbsent(h.remote, localPort, h.remotePort, h);
+        synQueued++;
+        h.synAckSentAt = System.currentTimeMillis();
+        sendSynAck(h);
+        scheduleRetransmit(h);
+      } else if (!h.established) {
+        // our SYN+ACK was likely lost
+        sendSynAck(h);
+      }
+      return;
+    }
+
+    if (h == null && !synCookies.equals(SYN_COOKIES_OFF)) {
+      h = checkCookie(p);
+    }
+    if (h == null) {
+      System.err.println("!!! UNMATCHED PACKET");
+      return;
+    }
+
+    if (!h.established) {
+      // Only the ACK of our SYN+ACK completes the handshake
+      if (p.synFlag || !p.ackFlag || p.ackNum != h.iss + 1) {
+        return;
+      }
+      if (acceptQueue.size() >= backlog) {
+        // Leave it half-open; our next SYN+ACK gets us another ACK
+        System.err.println("!!! ACCEPT QUEUE FULL, ACK DROPPED");
+        return;
+      }
+      h.retransmit.cancel();
+      h.established = true;
+      h.sndWnd = p.windowSize;
+      if (h.synAckSentAt != 0) {
+        h.rttSample = System.currentTimeMillis() - h.synAckSentAt;
+      }
+      synQueued--;
+      acceptQueue.addLast(h);
+      notifyAll();
+    }
+
+    // Data or a FIN sent right after the handshake is replayed to the
+    // socket that accepts the connection; if there is too much of it the
+    // remote host will resend the rest
+    if (p.dataLength() > 0 || p.finFlag) {
+      if (h.early.size() < MAX_EARLY_PACKETS) {
+        p.retain();
+        p.ownData();
+        h.early.add(p);
+      }
+    }
+  }
+
+  /**
+   * Waits for a completed handshake and takes it off the accept queue.
+   * The caller sets up its connection and then calls accepted().
+   * @exception SocketException if the listener is closed
+   */
+  synchronized Handshake accept() throws IOException {
+    while (acceptQueue.isEmpty()) {
+      if (closed) {
+        throw new SocketException("Socket is closed");
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        throw new IOException("ERROR: Accept Interrupted", e);
+      }
+    }
+    return acceptQueue.removeFirst();
+  }
+
+  /**
+   * Forgets a connection taken by accept() once the accepting socket is
+   * registered with the Demultiplexer, or failed to register.
+   * @return the packets that arrived for it in the meantime, oldest
+   *         first; the caller releases them
+   */
+  synchronized List<TCPPacket> accepted(Handshake h) {
+    pending.remove(h.remote, localPort, h.remotePort, h);
+    return new ArrayList<>(h.early);
+  }
+
+  /**
+   * Stops listening; connections that were not accepted are dropped and
+   * threads waiting in accept() get a SocketException.
+   */
+  synchronized void close() {
+    // pending SYN+ACK retransmissions see closed and stop
+    closed = true;
+    for (Handshake h : acceptQueue) {
+      for (TCPPacket p : h.early) {
+        p.release();
+      }
+    }
+    acceptQueue.clear();
+    notifyAll();
+  }
+
+  private void sendSynAck(Handshake h) {
+    sendSynAck(h.remote, h.remotePort, h.iss, h.irs, h.sackPermitted);
+  }
+
+  private void sendSynAck(InetAddress remote, int remotePort, int iss, int irs, boolean sackPermitted) {
+    TCPPacket synAck = TCPPacket.obtain(localPort, remotePort, iss, irs + 1, true, true, false, window);
+    synAck.sackPermitted = sackPermitted;
+    synAck.mss = mss;
+    TCPWrapper.send(synAck, remote);
+    synAck.release();
+  }
+
+  /**
+   * Sets up the connection an ACK completes if it returns a valid SYN
+   * cookie and there is room in the accept queue.
+   * @return the established connection, or null
+   */
+  private Handshake checkCookie(TCPPacket p) {
+    if (p.synFlag || !p.ackFlag) {
+      return null;
+    }
+    int cookie = p.ackNum - 1;
+    int irs = p.seqNum - 1;
+    int age = (cookiePeriod() - (cookie >>> 27)) & 0x1f;
+    if (age > 1) {
+      return null;
+    }
+    boolean sackPermitted = (cookie & (1 << 26)) != 0;
+    int mssIndex = (cookie >>> 24) & 3;
+    if (cookie != cookie(p.sourceAddr, p.sourcePort, irs, cookiePeriod() - age, sackPermitted, mssIndex)) {
+      return null;
+    }
+    if (acceptQueue.size() >= backlog) {
+      System.err.println("!!! ACCEPT QUEUE FULL, ACK DROPPED");
+      return null;
+    }
+    Handshake h = new Handshake(p.sourceAddr, p.sourcePort, irs, cookie, sackPermitted, COOKIE_MSS[mssIndex]);
+    h.established = true;
+    h.sndWnd = p.windowSize;
+    pending.putIfAbsent(h.remote, localPort, h.remotePort, h);
+    acceptQueue.addLast(h);
+    notifyAll();
+    return h;
+  }
+
+  /**
+   * The initial sequence number for a connection without state: the
+   * period it was made in (5 bits), whether the remote host offered
+   * SACK (1 bit), the index of its MSS in COOKIE_MSS (2 bits) and a hash
+   * of all three, the connection and the SYN's sequence number, keyed
+   * with our secret (24 bits).
+   */
+  private int cookie(InetAddress remote, int remotePort, int irs, int period, boolean sackPermitted, int mssIndex) {
+    int fields = ((period & 0x1f) << 3) | ((sackPermitted ? 1 : 0) << 2) | mssIndex;
+    long x = mix(secret ^ remote.hashCode());
+    x = mix(x ^ (((long) remotePort << 16) | localPort));
+    x = mix(x ^ (irs & 0xffffffffL));
+    x = mix(x ^ fields);
+    return (fields << 24) | (int) (x & 0xffffff);
+  }
+
+  // the largest of COOKIE_MSS not above the MSS option of a SYN
+  private static int cookieMss(int mss) {
+    if (mss == 0) {
+      mss = 536; // what a host without the option accepts
+    }
+    int i = COOKIE_MSS.length - 1;
+    while (i > 0 && COOKIE_MSS[i] > mss) {
+      i--;
+    }
+    return i;
+  }
+
+  private static int cookiePeriod() {
+    return (int) (System.currentTimeMillis() / COOKIE_PERIOD);
+  }
+
+  // the 64 bit finalizer of SplitMix64
+  private static long mix(long x) {
+    x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+    x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+    return x ^ (x >>> 31);
+  }
+
+  /**
+   * Resend the SYN+ACK with exponential backoff until the handshake
+   * completes, giving up after MAX_SYNACK_RETRIES.
+   */
+  private void scheduleRetransmit(Handshake h) {
+    h.retransmit = TCPTimerWheel.getShared().schedule(() -> {
+      synchronized (this) {
+        if (closed || h.established) {
+          return;
+        }
+        if (++h.retries > MAX_SYNACK_RETRIES) {
+          drop(h);
+          return;
+        }
+        h.synAckSentAt = 0;
+        sendSynAck(h);
+        scheduleRetransmit(h);
+      }
+    }, TCPRttEstimator.INITIAL_RTO << h.retries);
+  }
+
+  private void drop(Handshake h) {
+    if (h.retransmit != null) {
+      h.retransmit.cancel();
+    }
+    if (pending.remove(h.remote, localPort, h.remotePort, h)) {
+      synQueued--;
+    }
+  }
+}
@@ -1,4 +1,6 @@
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 //---------------------------------------------------
 //
@@ -12,9 +14,25 @@ import java.net.InetAddress;
 // either you have all the info you need to initialize a packet, or you
 // have a byte[] to read in.
 //
-// This implementation of TCPPacket will ignore options in the header,
-// and will also ignore the checksum, push flag, urgent flag and urgent
-// pointer.
+// neither way copies the data part. a received packet is a view of the
+// buffer the datagram was received into: the header fields are read
+// from it right away, but the data stays where it is until someone
+// asks for it, as a ByteBuffer with payload() or as a byte[] with
+// getData(), which copies it once. a packet to send keeps the data it
+// was given, and encode() writes the header and then the data straight
+// into the buffer that goes to the channel.
+//
+// on the busy paths packets are not made with new but recycled: obtain()
+// takes one from a pool and release() puts it back once everyone who
+// holds it (see retain()) is done with it, together with the pooled
+// buffer its data lives in.
+//
+// The only header options understood are SACK-permitted and SACK
+// (RFC 2018); any other option is skipped. This implementation will
+// also ignore the push flag, urgent flag and urgent pointer.
+//
+// the checksum is the Internet checksum (see TCPChecksum), written by
+// encode() and checked with checksumOk() on a received packet.
 //
 //---------------------------------------------------
 
@@ -45,8 +63,27 @@ class TCPPacket {
     public static final int BYTE4 = 0xff000000;
 
 
-    // constant for everyone to know the maximum possible packet size
-    public static final int MAX_PACKET_SIZE = 1000; // in bytes
+    // constant for everyone to know the maximum possible packet size:
+    // the largest UDP payload over IPv4 (65535 minus 20 bytes of IP and
+    // 8 bytes of UDP header). with the largest TCP header that leaves
+    // MAX_SEGMENT_SIZE bytes of data.
+    public static final int MAX_PACKET_SIZE = 65507; // in bytes
+    public static final int MAX_HEADER_SIZE = 60;
+    public static final int MAX_SEGMENT_SIZE = MAX_PACKET_SIZE - MAX_HEADER_SIZE;
+
+    // option kinds
+    public static final int OPT_EOL = 0;
+    public static final int OPT_NOP = 1;
+    public static final int OPT_MSS = 2;
+    public static final int OPT_SACK_PERMITTED = 4;
+    public static final int OPT_SACK = 5;
+
+    // at most 40 bytes of options fit in the header, so at most 4 SACK
+    // blocks of 8 bytes each (plus kind, length and padding)
+    public static final int MAX_SACK_BLOCKS = 4;
+
+    // packets kept for obtain() to hand out again
+    static final int POOL_SIZE = 1024;
     
     // TCP header things to keep in the packet
     InetAddress sourceAddr;
@@ -60,40 +97,231 @@ class TCPPacket {
     boolean finFlag;
     int windowSize;
 
+    // options
+    // maximum segment size the sender can receive, 0 if not given (only
+    // sent on SYNs)
+    int mss;
+    boolean sackPermitted;
+    // SACK blocks as pairs of left edge and right edge (the sequence
+    // number following the last byte of the block), or null
+    int[] sackBlocks;
+
     
-    // the data part of the TCP packet
+    // the data part of the TCP packet: dataLength bytes of dataBuffer
+    // starting at dataOffset, or none if dataLength is 0. dataBuffer is
+    // only read with absolute gets, so it is never moved.
     // be sure to NOT read possible header options into the data buf.
+    private ByteBuffer dataBuffer;
+    private int dataOffset;
+    private int dataLength;
+
+    // the pooled buffer the data lives in, if any. the packet holds it
+    // until the packet itself is released.
+    private TCPBufferPool.PooledBuffer backing;
+
+    // the data as an array, made the first time getData() is called
     protected byte[] data;
 
     
     // private because we dont want them to be messed with accidentally
     private int headerLength;
-    private int checksum;  // we dont bother with this quite yet
+    private int checksum;  // as received, or as last encoded
+
+    // where a received packet lies in dataBuffer, header included, for
+    // checksumOk(). packetLength is 0 for a packet made to be sent, or
+    // once ownData() moved the data away from the header.
+    private int packetOffset;
+    private int packetLength;
+
+    // false for a received datagram too short for a TCP header, or
+    // whose header length does not fit it. see isValid().
+    private boolean valid;
+
+    // holders of this packet, see retain() and release(). a packet from
+    // obtain() goes back to the pool once the last one lets go of it;
+    // one made with new is left to the garbage collector.
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private boolean pooled;
+
+    // packets that were released, for obtain() to hand out again
+    static private final TCPPool<TCPPacket> pool =
+        new TCPPool<TCPPacket>(POOL_SIZE, TCPPacket::new);
+
+
+    // for the pool
+    private TCPPacket() {
+        this.pooled = true;
+    }
 
     
     // creates a TCPPacket from the real buffer of data... this
     // constructor will generally be used when RECEIVING data, and
-    // formulating it into a packet.
+    // formulating it into a packet. the packet keeps using the array.
     public TCPPacket( byte[] packet, InetAddress sender ) {
+        this(ByteBuffer.wrap(packet), sender);
+    }
+
+
+    // creates a TCPPacket from the bytes between the position and the
+    // limit of a buffer, e.g. the buffer a datagram was received into.
+    // the header is read in place and the data is not copied at all,
+    // so those bytes of the buffer must not be overwritten while the
+    // packet is in use. the buffer's position and limit are left
+    // alone.
+    public TCPPacket( ByteBuffer packet, InetAddress sender ) {
+        decode(packet, packet.position(), packet.remaining(), sender);
+    }
+
+    
+    // creates a TCPPacket from values given here. will usually be used
+    // when SENDING a packet. the packet keeps the data array, so it must
+    // not be changed afterwards.
+    public TCPPacket( int sourcePort, int destPort, int seqNum, int ackNum,
+                      boolean ackFlag, boolean synFlag, boolean finFlag,
+                      int windowSize, byte[] data) {
+        this(sourcePort, destPort, seqNum, ackNum, ackFlag, synFlag, finFlag,
+             windowSize, data == null ? null : ByteBuffer.wrap(data));
+    }
+
+    // same as above, with the data between the position and the limit
+    // of a buffer. the packet keeps using those bytes, so they must not
+    // be changed afterwards.
+    public TCPPacket( int sourcePort, int destPort, int seqNum, int ackNum,
+                      boolean ackFlag, boolean synFlag, boolean finFlag,
+                      int windowSize, ByteBuffer data) {
+        set(sourcePort, destPort, seqNum, ackNum, ackFlag, synFlag, finFlag,
+            windowSize);
+        if (data != null) {
+            dataBuffer = data;
+            dataOffset = data.position();
+            dataLength = data.remaining();
+        }
+    }
+
+
+    // the same as the constructor without data, but recycling a packet
+    // from the pool. release() the packet once it has been sent; data
+    // can be added with setData().
+    public static TCPPacket obtain( int sourcePort, int destPort, int seqNum,
+                                    int ackNum, boolean ackFlag,
+                                    boolean synFlag, boolean finFlag,
+                                    int windowSize ) {
+        TCPPacket p = pool.acquire();
+        p.refs.set(1);
+        p.set(sourcePort, destPort, seqNum, ackNum, ackFlag, synFlag, finFlag,
+              windowSize);
+        return(p);
+    }
+
+    // a recycled packet for a datagram of length bytes received at
+    // offset into a pooled buffer. like the ByteBuffer constructor the
+    // data is not copied; the packet holds the buffer until it is
+    // released, which is up to the caller.
+    public static TCPPacket obtain( TCPBufferPool.PooledBuffer backing,
+                                    int offset, int length,
+                                    InetAddress sender ) {
+        TCPPacket p = pool.acquire();
+        p.refs.set(1);
+        p.decode(backing.buffer, offset, length, sender);
+        // held even without data: the header is still read from it,
+        // e.g. by checksumOk() on a lane long after the datagram came
+        backing.retain();
+        p.backing = backing;
+        return(p);
+    }
+
+    // makes the first length bytes of a pooled buffer the data of this
+    // packet. the packet takes over the caller's hold on the buffer.
+    public void setData( TCPBufferPool.PooledBuffer buffer, int length ) {
+        backing = buffer;
+        dataBuffer = buffer.buffer;
+        dataOffset = 0;
+        dataLength = length;
+        data = null;
+    }
+
+    // adds a holder: the packet stays as it is until every holder,
+    // including the one that created or obtained it, called release().
+    public void retain() {
+        refs.incrementAndGet();
+    }
+
+    // removes a holder. once there are none, a packet from obtain() lets
+    // go of its data and goes back to the pool, so nobody may use it
+    // after their release().
+    public void release() {
+        int left = refs.decrementAndGet();
+        if (left < 0)
+            throw new IllegalStateException("packet released too often");
+        if (left > 0 || !pooled)
+            return;
+        if (backing != null) {
+            backing.release();
+            backing = null;
+        }
+        dataBuffer = null;
+        data = null;
+        sourceAddr = null;
+        sackBlocks = null;
+        pool.release(this);
+    }
+
+
+    private void set( int sourcePort, int destPort, int seqNum, int ackNum,
+                      boolean ackFlag, boolean synFlag, boolean finFlag,
+                      int windowSize ) {
+        this.sourceAddr = null;
+        this.sourcePort = sourcePort;
+        this.destPort = destPort;
+        this.seqNum = seqNum;
+        this.ackNum = ackNum;
+        this.ackFlag = ackFlag;
+        this.synFlag = synFlag;
+        this.finFlag = finFlag;
+        this.windowSize = windowSize;
+        this.mss = 0;
+        this.sackPermitted = false;
+        this.sackBlocks = null;
+        this.dataBuffer = null;
+        this.dataLength = 0;
+        this.data = null;
+        this.packetLength = 0;
+        this.valid = true;
+        
+        this.rstFlag = false;
+        this.headerLength = 20; // grows when options are set, see encode()
+        
+        this.checksum = 0; // WILL SET WHEN WE WRITE THE PACKET.
+    }
+
+
+    // reads the length bytes of a packet starting at base
+    private void decode( ByteBuffer packet, int base, int length,
+                         InetAddress sender ) {
+        if (length < 20) {
+            // a runt: there is no header to read, only whatever was
+            // left in the buffer after it
+            set(0, 0, 0, 0, false, false, false, 0);
+            sourceAddr = sender;
+            headerLength = 0;
+            valid = false;
+            return;
+        }
+
         sourceAddr = sender;
-        sourcePort = (((char)((char)packet[0] << 8)) & BYTE2) |
-            (((char)(packet[1])) & BYTE1);
-        destPort = (((char)((char)packet[2] << 8)) & BYTE2) |
-            (((char)(packet[3])) & BYTE1);
+        sourcePort = packet.getShort(base) & 0xffff;
+        destPort = packet.getShort(base+2) & 0xffff;
         
-        seqNum = (((int)packet[4] << 24) & BYTE4) |
-            (((int)packet[5] << 16) & BYTE3) |
-            (((int)packet[6] << 8) & BYTE2)|
-            (((int)packet[7]) & BYTE1);
-        ackNum = (((int)packet[8] << 24) & BYTE4) |
-            (((int)packet[9] << 16) & BYTE3) |
-            (((int)packet[10] << 8) & BYTE2)|
-            (((int)packet[11]) & BYTE1);
+        seqNum = packet.getInt(base+4);
+        ackNum = packet.getInt(base+8);
         
         // header length is only 4 bits in the TCP header
         // this number represents how many 32-bit words in the header...
         // i.e. 4 bytes to a word  (hence the *4 at the end)
-        headerLength = (packet[12] >> 4)*4;
+        headerLength = ((packet.get(base+12) >> 4) & 0x0f)*4;
+        // it has to cover the fixed header and fit the datagram, or the
+        // data would start inside the header or past the end
+        valid = headerLength >= 20 && headerLength <= length;
 
         // ignore the reserved bits
         // ignore the URG flag
@@ -101,77 +329,231 @@ class TCPPacket {
 
         // the next 4 statements use bitmasking so we can see the value
         // of one bit, for the TCP flags
+        byte flags = packet.get(base+13);
         
-        if ((packet[13] & BIT5)==0)  ackFlag=false;
+        if ((flags & BIT5)==0)  ackFlag=false;
         else ackFlag=true;
 
-        if ((packet[13] & BIT3)==0)  rstFlag=false;
+        if ((flags & BIT3)==0)  rstFlag=false;
         else rstFlag=true;
 
-        if ((packet[13] & BIT2)==0)  synFlag=false;
+        if ((flags & BIT2)==0)  synFlag=false;
         else synFlag=true;
 
-        if ((packet[13] & BIT1)==0)  finFlag=false;
+        if ((flags & BIT1)==0)  finFlag=false;
         else finFlag=true;
 
 
-        windowSize = (((char)((char)packet[14] << 8)) & BYTE2) |
-            (((char)(packet[15])) & BYTE1);
-        checksum = (((char)((char)packet[16] << 8)) & BYTE2) |
-            (((char)(packet[17])) & BYTE1);
+        windowSize = packet.getShort(base+14) & 0xffff;
+        checksum = packet.getShort(base+16) & 0xffff;
 
+        mss = 0;
+        sackPermitted = false;
+        sackBlocks = null;
+        if (valid)
+            readOptions(packet, base, headerLength);
 
-        // copy the data, if any
-        int j=0;
-        int dataSize=(packet.length-headerLength);
-        if (dataSize>0)
-            data = new byte[dataSize];
-        else
-            data = null;
-        for( int i=headerLength; i<packet.length; i++,j++) {
-            // starting at the end of the TCP header, and copying till
-            // the end of this byte[], we have our data.
-            data[j] = packet[i];
-        }
+
+        // the data, if any. starting at the end of the TCP header, and
+        // going till the end of the datagram, we have our data.
+        data = null;
+        dataBuffer = packet;
+        dataOffset = base+headerLength;
+        dataLength = valid ? length-headerLength : 0;
+        packetOffset = base;
+        packetLength = length;
     }
 
-    
-    // creates a TCPPacket from values given here. will usually be used
-    // when SENDING a packet.
-    public TCPPacket( int sourcePort, int destPort, int seqNum, int ackNum,
-                      boolean ackFlag, boolean synFlag, boolean finFlag,
-                      int windowSize, byte[] data) {
-        this.sourcePort = sourcePort;
-        this.destPort = destPort;
-        this.seqNum = seqNum;
-        this.ackNum = ackNum;
-        this.ackFlag = ackFlag;
-        this.synFlag = synFlag;
-        this.finFlag = finFlag;
-        this.windowSize = windowSize;
-	if(data != null){
-	  this.data = new byte[data.length];
-	  System.arraycopy(data, 0, this.data, 0, data.length);
-	}
-	else
-	  this.data = null;
-        
-        this.rstFlag = false;
-        this.headerLength = 20; // no options, so will always be 20 bytes.
-        
-        this.checksum = 0; // WILL SET WHEN WE WRITE THE PACKET.
+
+    // whether a received packet is a TCP segment at all: long enough
+    // for the fixed header, with a header length between that and the
+    // length of the datagram. a packet that is not has no data, and its
+    // header fields mean nothing; drop it.
+    public boolean isValid() {
+        return(valid);
     }
+
+
+    // whether a received packet arrived as it was sent: its checksum
+    // matches, or the sender did not compute one (the field is 0). a
+    // packet made to be sent has nothing to check.
+    public boolean checksumOk() {
+        if (packetLength==0)
+            return(true);
+        return( TCPChecksum.verify(dataBuffer, packetOffset, packetLength) );
+    }
+
     
-    
+    // reads the options between the fixed 20 byte header and the data,
+    // for a header starting at base and ending before base+end.
+    // options we dont know are skipped using their length byte.
+    private void readOptions( ByteBuffer packet, int base, int end ) {
+        int i = 20;
+        while (i < end) {
+            int kind = packet.get(base+i) & BYTE1;
+            if (kind == OPT_EOL)
+                break;
+            if (kind == OPT_NOP) {
+                i++;
+                continue;
+            }
+            if (i+1 >= end)
+                break;
+            int length = packet.get(base+i+1) & BYTE1;
+            if (length < 2 || i+length > end)
+                break; // malformed, ignore the rest
+            if (kind == OPT_MSS && length == 4) {
+                mss = packet.getShort(base+i+2) & 0xffff;
+            }
+            else if (kind == OPT_SACK_PERMITTED) {
+                sackPermitted = true;
+            }
+            else if (kind == OPT_SACK) {
+                int blocks = (length-2)/8;
+                sackBlocks = new int[blocks*2];
+                for (int j=0; j<blocks*2; j++)
+                    sackBlocks[j] = packet.getInt(base+i+2+j*4);
+            }
+            i += length;
+        }
+    }
+
+    // number of SACK blocks that will be written
+    private int sackBlockCount() {
+        if (sackBlocks==null)
+            return 0;
+        return Math.min(sackBlocks.length/2, MAX_SACK_BLOCKS);
+    }
+
+    // length of the options we write, padded to a multiple of 4 bytes
+    private int optionsLength() {
+        int length = 0;
+        if (mss > 0)
+            length += 4; // kind, length, value
+        if (sackPermitted)
+            length += 4; // NOP, NOP, kind, length
+        if (sackBlockCount() > 0)
+            length += 4 + 8*sackBlockCount(); // NOP, NOP, kind, length, blocks
+        return length;
+    }
+
+    // writes the options after the fixed 20 byte header starting at
+    // base, using NOPs so that each option ends on a 32-bit boundary
+    private void writeOptions( ByteBuffer packet, int base ) {
+        int i = base+20;
+        if (mss > 0) {
+            packet.put(i++, (byte) OPT_MSS);
+            packet.put(i++, (byte) 4);
+            packet.putShort(i, (short) mss);
+            i += 2;
+        }
+        if (sackPermitted) {
+            packet.put(i++, (byte) OPT_NOP);
+            packet.put(i++, (byte) OPT_NOP);
+            packet.put(i++, (byte) OPT_SACK_PERMITTED);
+            packet.put(i++, (byte) 2);
+        }
+        int blocks = sackBlockCount();
+        if (blocks > 0) {
+            packet.put(i++, (byte) OPT_NOP);
+            packet.put(i++, (byte) OPT_NOP);
+            packet.put(i++, (byte) OPT_SACK);
+            packet.put(i++, (byte) (2+8*blocks));
+            for (int j=0; j<blocks*2; j++, i+=4)
+                packet.putInt(i, sackBlocks[j]);
+        }
+    }
+
+
+    // number of bytes in the data part
+    public int dataLength() {
+        return(dataLength);
+    }
+
+    // hands the data, from skip bytes in to the end, to a receive buffer
+    // without making a ByteBuffer for it. returns the bytes it took, see
+    // TCPByteRing.offer().
+    public int offerData( TCPByteRing ring, int skip ) {
+        return( ring.offer(dataBuffer, dataOffset+skip, dataLength-skip) );
+    }
+
+    // moves the data out of the chunk the datagram was received into,
+    // into a pooled buffer just big enough for it. a packet that is held
+    // for long, e.g. until a gap before it is filled, would otherwise
+    // keep the whole chunk from going back to its pool. the header is
+    // gone afterwards, so call checksumOk() first.
+    public void ownData() {
+        if (packetLength==0 || backing==null)
+            return; // made to be sent, or moved already
+        packetLength = 0;
+        if (dataLength==0) {
+            // nothing to keep, e.g. a FIN
+            backing.release();
+            backing = null;
+            dataBuffer = null;
+            return;
+        }
+        TCPBufferPool.PooledBuffer copy =
+            TCPBufferPool.getSharedHeap().acquire(dataLength);
+        copy.buffer.put(0, dataBuffer, dataOffset, dataLength);
+        backing.release();
+        backing = copy;
+        dataBuffer = copy.buffer;
+        dataOffset = 0;
+    }
+
+    // the data part as a buffer of its own, from position 0 to the
+    // limit, or null if there is no data. it shares the bytes of the
+    // packet, so they must not be changed through it.
+    public ByteBuffer payload() {
+        return( dataLength==0 ? null : dataBuffer.slice(dataOffset, dataLength) );
+    }
+
+    // number of bytes encode() will write
+    public int getPacketLength() {
+        // TCP Header is 20 bytes plus whatever options are set
+        return( 20+optionsLength()+dataLength() );
+    }
+
+
     // returns the whole packet as an array.  this array can then be
     // used in a DatagramPacket, for example.
     public byte[] getBufferPacket () {
-        // TCP Header that we create will ALWAYS be 20 bytes
-        byte packet[];
-        if (data==null)
-            packet = new byte[20];
-        else
-            packet = new byte[20+data.length];
+        byte packet[] = new byte[getPacketLength()];
+        encode(ByteBuffer.wrap(packet));
+        return(packet);
+    }
+
+    // writes the whole packet at the position of a buffer, which must
+    // have getPacketLength() bytes left, and moves the position past
+    // it. the header goes in first and then the data, copied straight
+    // from where the packet keeps it.
+    public void encode( ByteBuffer packet ) {
+        encode(packet, true);
+    }
+
+    // same as above, leaving the checksum 0 (none) unless asked for it
+    public void encode( ByteBuffer packet, boolean withChecksum ) {
+        encodeHeader(packet, withChecksum);
+        if (dataLength>0) {
+            packet.put(packet.position(), dataBuffer, dataOffset, dataLength);
+            packet.position(packet.position()+dataLength);
+        }
+    }
+
+    // writes only the header, options included, at the position of a
+    // buffer and moves the position past it. with payload() this is
+    // the packet in two parts, e.g. for a gathering write. the
+    // checksum covers the data as well, which is summed where it is.
+    public void encodeHeader( ByteBuffer packet ) {
+        encodeHeader(packet, true);
+    }
+
+    // same as above, leaving the checksum 0 (none) unless asked for it
+    public void encodeHeader( ByteBuffer packet, boolean withChecksum ) {
+        // TCP Header is 20 bytes plus whatever options are set
+        headerLength = 20+optionsLength();
+        int base = packet.position();
 
         int flags = 0;
         if (ackFlag)
@@ -184,41 +566,41 @@ class TCPPacket {
             flags = flags|BIT1;
 
         
-        packet[0] = (byte) (sourcePort>>8);
-        packet[1] = (byte)  sourcePort;
-        packet[2] = (byte) (destPort>>8);
-        packet[3] = (byte)  destPort;
-        packet[4] = (byte) (seqNum>>24);
-        packet[5] = (byte) (seqNum>>16);
-        packet[6] = (byte) (seqNum>>8);
-        packet[7] = (byte)  seqNum;
-        packet[8] = (byte) (ackNum>>24);
-        packet[9] = (byte) (ackNum>>16);
-        packet[10] =(byte) (ackNum>>8);
-        packet[11] =(byte)  ackNum;
-        packet[12] =(byte) ((headerLength/4)<<4);
-        packet[13] = (byte)  flags;
-        packet[14] = (byte) (windowSize>>8);
-        packet[15] = (byte)  windowSize;
-        packet[16] = (byte) (checksum>>8);
-        packet[17] = (byte)  checksum;
-        packet[18] = 0;
-        packet[19] = 0;
-
-        
-        // add data to packet, if needed
-        if (data!=null) {
-            for (int i=0; i<data.length; i++) {
-                packet[i+20] = data[i];
-            }
+        packet.putShort(base, (short) sourcePort);
+        packet.putShort(base+2, (short) destPort);
+        packet.putInt(base+4, seqNum);
+        packet.putInt(base+8, ackNum);
+        packet.put(base+12, (byte) ((headerLength/4)<<4));
+        packet.put(base+13, (byte) flags);
+        packet.putShort(base+14, (short) windowSize);
+        packet.putShort(base+16, (short) 0); // summed as 0, see below
+        packet.putShort(base+18, (short) 0);
+
+        writeOptions(packet, base);
+        packet.position(base+headerLength);
+
+        // the header is a whole number of 32-bit words, so the sum of
+        // the data can simply be added to the sum of the header
+        checksum = 0;
+        if (withChecksum) {
+            long sum = TCPChecksum.sum(packet, base, headerLength);
+            if (dataLength>0)
+                sum += TCPChecksum.sum(dataBuffer, dataOffset, dataLength);
+            sum += TCPChecksum.pseudoHeader(headerLength+dataLength);
+            checksum = TCPChecksum.finish(sum);
+            packet.putShort(base+TCPChecksum.OFFSET, (short) checksum);
         }
-
-        return(packet);
     }
 
-    // returns ONLY the data part of the packet
+    // returns ONLY the data part of the packet, copied into an array
+    // the first time this is called.
     // is possible that it may return null.
     public byte[] getData() {
+        if (data==null && dataLength>0) {
+            byte copy[] = new byte[dataLength];
+            dataBuffer.get(dataOffset, copy);
+            data = copy;
+        }
         return(data);
     }
 
@@ -237,6 +619,10 @@ class TCPPacket {
             flags = flags+"\n synFlag IS TRUE";
         if (finFlag)
             flags = flags+"\n finFlag IS TRUE";
+        if (sackPermitted)
+            flags = flags+"\n sackPermitted IS TRUE";
+        if (mss > 0)
+            flags = flags+"\n mss = "+mss;
 
 
         String toReturn =
@@ -249,10 +635,11 @@ class TCPPacket {
             "\n windowSize = "+windowSize+
             "\n ----------------- "+
             "\n checksum = "+checksum+
-            "\n headerLength = "+headerLength;
-        if (data!=null)
+            "\n headerLength = "+headerLength+
+            "\n sack = "+getSackString();
+        if (dataLength>0)
             toReturn = toReturn +
-                "\n datalen = "+data.length;
+                "\n datalen = "+dataLength();
         else
             toReturn = toReturn +
                 "\n data is null";
@@ -264,6 +651,16 @@ class TCPPacket {
     }
 
 
+    // SACK blocks as "left-right" pairs, for debugging
+    public String getSackString() {
+        if (sackBlocks==null)
+            return("none");
+        String output = "";
+        for (int i=0; i+1<sackBlocks.length; i+=2)
+            output = output+(i>0 ? "," : "")+sackBlocks[i]+"-"+sackBlocks[i+1];
+        return(output);
+    }
+
     // outputs the core values of the packet
     public String toString() {
         String flags;
@@ -283,9 +680,11 @@ class TCPPacket {
 
         String output = "    "+"srcPort="+ sourcePort+" destPort="+destPort+
             " seq="+seqNum+" ack="+ackNum+flags+" wndSize="+windowSize;
+        if (sackBlocks!=null && sackBlocks.length>0)
+            output = output+" sack="+getSackString();
 
-        if (data!=null){
-	  output = output+" datalen="+data.length;
+        if (dataLength>0){
+	  output = output+" datalen="+dataLength();
 	}
         else
 	  output = output+" (no data)";
@@ -297,10 +696,11 @@ class TCPPacket {
     public static void main(String args[]){
         // for DEBUGGING ONLY!!!
 
-        // this little test will test 3 things:
+        // this little test will test 4 things:
         // (1) the easy packet constructor
         // (2) conversion of packet to byte[]
         // (3) the reading of the byte[] into packet
+        // (4) the rejection of malformed datagrams
 
         byte buf[] = new byte[3];
         buf[0] = 2;
@@ -309,10 +709,11 @@ class TCPPacket {
         
         TCPPacket packet = new
             TCPPacket(12345,23456,1234567,2345678,true,false,true,56,buf);
+        packet.sackBlocks = new int[] {1000, 1512, 2024, 2536};
         System.out.println(packet.getDebugOutput());
         System.out.println(packet);
         System.out.println("packet.data[3] = "
-                           +packet.data[0]+packet.data[1]+packet.data[2]);
+                           +packet.getData()[0]+packet.getData()[1]+packet.getData()[2]);
 
         
         TCPPacket grub = new TCPPacket(packet.getBufferPacket(), 
@@ -320,7 +721,24 @@ class TCPPacket {
         System.out.println(grub.getDebugOutput());
         System.out.println(grub);
         System.out.println("grub.data[3] = "
-                           +grub.data[0]+grub.data[1]+grub.data[2]);
+                           +grub.getData()[0]+grub.getData()[1]+grub.getData()[2]);
+        System.out.println("grub.checksumOk() = "+grub.checksumOk());
+
+        // (4) malformed datagrams are recognized as such
+        TCPPacket runt = new TCPPacket(new byte[10], packet.sourceAddr);
+        System.out.println("runt.isValid() = "+runt.isValid()+
+                           ", datalen = "+runt.dataLength());
+
+        byte bad[] = packet.getBufferPacket();
+        bad[12] = (byte) (3<<4); // 12 bytes, shorter than the fixed header
+        TCPPacket shortHeader = new TCPPacket(bad, packet.sourceAddr);
+        System.out.println("shortHeader.isValid() = "+shortHeader.isValid()+
+                           ", datalen = "+shortHeader.dataLength());
+
+        bad[12] = (byte) (15<<4); // 60 bytes, longer than the datagram
+        TCPPacket longHeader = new TCPPacket(bad, packet.sourceAddr);
+        System.out.println("longHeader.isValid() = "+longHeader.isValid()+
+                           ", datalen = "+longHeader.dataLength());
 
                 
     }
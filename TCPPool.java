@@ -0,0 +1,56 @@
+import java.util.function.Supplier;
+
+/**
+ * A bounded stack of objects to be used again instead of garbage, for
+ * the objects every packet needs. acquire() takes the most recently
+ * released object, which is the one most likely still in the cache,
+ * and only creates one when the pool is empty; release() keeps at most
+ * the pool's capacity and leaves the rest to the garbage collector, so
+ * a burst does not hold on to its memory forever.
+ *
+ * Pushing and popping is a few instructions under the pool's lock,
+ * taken by whichever thread happens to acquire or release.
+ */
+class TCPPool<T> {
+
+  private final Supplier<T> factory;
+  private final Object[] free;
+  private int count;
+
+  /**
+   * @param capacity the most objects kept for later, at least 1
+   * @param factory creates an object when none is free
+   */
+  TCPPool(int capacity, Supplier<T> factory) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("pool capacity must be at least 1");
+    }
+    this.factory = factory;
+    this.free = new Object[capacity];
+  }
+
+  /**
+   * @return a free object, or a new one if there is none
+   */
+  @SuppressWarnings("unchecked")
+  T acquire() {
+    synchronized (this) {
+      if (count > 0) {
+        T t = (T) free[--count];
+        free[count] = null;
+        return t;
+      }
+    }
+    return factory.get();
+  }
+
+  /**
+   * Keeps an object for a later acquire(). The caller must not use it
+   * anymore.
+   */
+  synchronized void release(T t) {
+    if (count < free.length) {
+      free[count++] = t;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out local ports for connections we open, from a range of
+ * ephemeral ports, and takes them back when the connection is gone.
+ *
+ * Ports in use are bits in a bitmap that are set and cleared with a
+ * compare-and-set, so allocating takes no lock. The search starts
+ * just past the last port handed out and wraps around the range, so a
+ * port that was just released is the last one to be handed out again.
+ * This keeps a late packet of an old connection from reaching a new
+ * one on the same port, on top of the TIME_WAIT state that keeps the
+ * port taken until the old connection has expired.
+ */
+class TCPPortAllocator {
+
+  static final int FIRST_EPHEMERAL_PORT = 49152;
+  static final int LAST_EPHEMERAL_PORT = 65535;
+
+  private final int first;
+  private final int count;
+  private final AtomicLongArray inUse; // bit i stands for port first+i
+  private final AtomicInteger next;    // where the next search starts
+
+  /**
+   * @param first lowest port to hand out
+   * @param last highest port to hand out
+   */
+  TCPPortAllocator(int first, int last) {
+    if (first < 1 || last > 65535 || first > last) {
+      throw new IllegalArgumentException("bad port range " + first + "-" + last);
+    }
+    this.first = first;
+    this.count = last - first + 1;
+    this.inUse = new AtomicLongArray((count + 63) / 64);
+    this.next = new AtomicInteger();
+  }
+
+  /**
+   * Takes a free port.
+   * @return the port, or -1 if every port of the range is in use
+   */
+  int allocate() {
+    int words = inUse.length();
+    int start = Math.floorMod(next.get(), count);
+    int word = start >>> 6;
+    long from = -1L << (start & 63); // bits at or after start in the first word
+    // one extra word covers the bits before start in the first word
+    for (int n = 0; n <= words; n++) {
+      long w = inUse.get(word);
+      long free = ~w & from & validBits(word);
+      if (free != 0) {
+        int bit = Long.numberOfTrailingZeros(free);
+        if (inUse.compareAndSet(word, w, w | (1L << bit))) {
+          int index = (word << 6) + bit;
+          next.set(index + 1);
+          return first + index;
+        }
+        n--; // lost a race for this word, look at it again
+        continue;
+      }
+      word = (word + 1) % words;
+      from = -1L;
+    }
+    return -1;
+  }
+
+  /**
+   * Gives back a port handed out by allocate(). Ports outside the range
+   * are ignored.
+   */
+  void release(int port) {
+    int index = port - first;
+    if (index < 0 || index >= count) {
+      return;
+    }
+    long bit = 1L << (index & 63);
+    int word = index >>> 6;
+    long w;
+    do {
+      w = inUse.get(word);
+    } while (!inUse.compareAndSet(word, w, w & ~bit));
+  }
+
+  // the bits of a word that stand for ports of the range
+  private long validBits(int word) {
+    int bits = count - (word << 6);
+    return bits >= 64 ? -1L : (1L << bits) - 1;
+  }
+}
@@ -0,0 +1,66 @@
+/**
+ * Round-trip time estimation and retransmission timeout calculation
+ * for one connection, following RFC 6298.
+ *
+ * Callers must only feed samples from segments that were never
+ * retransmitted (Karn's algorithm), since the ACK of a retransmitted
+ * segment cannot be matched to one particular transmission.
+ */
+class TCPRttEstimator {
+
+  static final long INITIAL_RTO = 1000; // before the first sample, in ms
+  static final long MIN_RTO = 200;
+  static final long MAX_RTO = 60000;
+  private static final long CLOCK_GRANULARITY = 10;
+
+  private long srtt = -1; // smoothed round-trip time, -1 until the first sample
+  private long rttvar;    // round-trip time variation
+  private long rto = INITIAL_RTO;
+  private int backoff;    // timeouts since the last sample
+
+  /**
+   * Update the estimate with a newly measured round trip.
+   * @param rtt measured round-trip time in milliseconds
+   */
+  void addSample(long rtt) {
+    if (srtt < 0) {
+      srtt = rtt;
+      rttvar = rtt / 2;
+    } else {
+      rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+      srtt = (7 * srtt + rtt) / 8;
+    }
+    rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt + Math.max(CLOCK_GRANULARITY, 4 * rttvar)));
+    backoff = 0;
+  }
+
+  /**
+   * Double the timeout after a retransmission timer expired.
+   */
+  void backoff() {
+    if (getRTO() < MAX_RTO) {
+      backoff++;
+    }
+  }
+
+  /**
+   * @return the timeout to use for the next retransmission, in ms
+   */
+  long getRTO() {
+    return Math.min(MAX_RTO, rto << backoff);
+  }
+
+  /**
+   * @return the smoothed round-trip time in ms, or -1 without samples
+   */
+  long getSRTT() {
+    return srtt;
+  }
+
+  /**
+   * @return the round-trip time variation in ms
+   */
+  long getRTTVAR() {
+    return rttvar;
+  }
+}
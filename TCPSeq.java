@@ -0,0 +1,55 @@
+/**
+ * Comparisons of TCP sequence numbers. Sequence numbers are 32 bits and
+ * wrap around, so they are compared as serial numbers (RFC 1982, as RFC
+ * 793 does): a is before b if b is less than 2^31 ahead of a. Within
+ * any window smaller than that the order is exact, whatever the values.
+ */
+final class TCPSeq {
+
+  private TCPSeq() {
+  }
+
+  /**
+   * @return whether a comes before b
+   */
+  static boolean before(int a, int b) {
+    return a - b < 0;
+  }
+
+  /**
+   * @return whether a comes before b or is b
+   */
+  static boolean atOrBefore(int a, int b) {
+    return a - b <= 0;
+  }
+
+  /**
+   * @return whether a comes after b
+   */
+  static boolean after(int a, int b) {
+    return a - b > 0;
+  }
+
+  /**
+   * @return whether a comes after b or is b
+   */
+  static boolean atOrAfter(int a, int b) {
+    return a - b >= 0;
+  }
+
+  /**
+   * @return whether seq lies in the range from (inclusive) to end
+   *         (exclusive)
+   */
+  static boolean between(int seq, int from, int end) {
+    return seq - from >= 0 && seq - end < 0;
+  }
+
+  /**
+   * Orders sequence numbers, e.g. for a sorted map of segments; only
+   * consistent for numbers less than 2^31 apart.
+   */
+  static int compare(int a, int b) {
+    return Integer.signum(a - b);
+  }
+}
@@ -21,6 +21,16 @@ class TCPStart {
     
   public final static String PORTRESOURCE = "UDPPORT";
   public final static String LOSSRATERESOURCE = "LOSSRATE";
+  public final static String SENDWINDOWRESOURCE = "SENDWINDOW";
+  public final static String CONGESTIONRESOURCE = "CONGESTION";
+  public final static String PACKETRATERESOURCE = "PACKETRATE";
+  public final static String PACKETBURSTRESOURCE = "PACKETBURST";
+  public final static String LANESRESOURCE = "DEMUXLANES";
+  public final static String TIMEWAITRESOURCE = "TIMEWAIT";
+  public final static String SYNBACKLOGRESOURCE = "SYNBACKLOG";
+  public final static String SYNCOOKIESRESOURCE = "SYNCOOKIES";
+  public final static String MSSRESOURCE = "MSS";
+  public final static String CHECKSUMRESOURCE = "CHECKSUM";
 
   static public void start() {
 
@@ -43,6 +53,68 @@ class TCPStart {
         
     // initialize more TCPWrapper stuff here, if you want to test packet
     // dropping, or if you want to change the sending-rate limit
+    if (System.getProperty(PACKETRATERESOURCE)!=null) {
+      TCPWrapper.setPacketRate
+	(Integer.parseInt(System.getProperty(PACKETRATERESOURCE)));
+    }
+    if (System.getProperty(PACKETBURSTRESOURCE)!=null) {
+      TCPWrapper.setPacketBurst
+	(Integer.parseInt(System.getProperty(PACKETBURSTRESOURCE)));
+    }
+
+    // which packets are checksummed: on, offload (all but loopback)
+    // or off
+    if (System.getProperty(CHECKSUMRESOURCE)!=null) {
+      TCPWrapper.setChecksumMode(System.getProperty(CHECKSUMRESOURCE));
+    }
+
+    // number of segments each connection may have unacknowledged
+    if (System.getProperty(SENDWINDOWRESOURCE)!=null) {
+      StudentSocketImpl.setDefaultSendWindow
+	(Integer.parseInt(System.getProperty(SENDWINDOWRESOURCE)));
+    }
+
+    // largest segment each connection accepts, and so sends at most
+    if (System.getProperty(MSSRESOURCE)!=null) {
+      StudentSocketImpl.setDefaultMss
+	(Integer.parseInt(System.getProperty(MSSRESOURCE)));
+    }
+
+    // congestion control algorithm of each connection, reno or cubic
+    if (System.getProperty(CONGESTIONRESOURCE)!=null) {
+      try {
+        StudentSocketImpl.setDefaultCongestionControl
+          (System.getProperty(CONGESTIONRESOURCE));
+      } catch (SocketException e) {
+        System.err.println(e.getMessage());
+        System.exit(1);
+      }
+    }
+
+    // milliseconds a closed connection keeps its ports in TIME_WAIT
+    if (System.getProperty(TIMEWAITRESOURCE)!=null) {
+      StudentSocketImpl.setTimeWaitDelay
+	(Long.parseLong(System.getProperty(TIMEWAITRESOURCE)));
+    }
+
+    // half-open connections each listening port keeps
+    if (System.getProperty(SYNBACKLOGRESOURCE)!=null) {
+      TCPListener.setDefaultSynBacklog
+	(Integer.parseInt(System.getProperty(SYNBACKLOGRESOURCE)));
+    }
+
+    // whether listeners answer SYNs with cookies: off, overflow
+    // (while their SYN queue is full) or always
+    if (System.getProperty(SYNCOOKIESRESOURCE)!=null) {
+      TCPListener.setDefaultSynCookies
+	(System.getProperty(SYNCOOKIESRESOURCE));
+    }
+
+    // number of threads incoming packets are spread over, by connection
+    if (System.getProperty(LANESRESOURCE)!=null) {
+      Demultiplexer.setLaneCount
+	(Integer.parseInt(System.getProperty(LANESRESOURCE)));
+    }
 
         
     // create an instance of the Demultiplexer
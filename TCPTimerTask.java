@@ -1,27 +1,67 @@
+/**
+ * One timer of a connection, run on a TCPTimerWheel. When it expires
+ * the socket's handleTimer() is called with the timer itself and the
+ * reference it was created with: the packet to retransmit, or one of
+ * the markers below for the connection's other timers. A timer that was
+ * already expiring when it was cancelled or replaced still runs, so the
+ * socket ignores any timer that is no longer the current one.
+ *
+ * A packet is held (see TCPPacket.retain()) until the timer has run or
+ * is cancelled, so it is not recycled while the timer may still hand it
+ * to the socket.
+ */
+public class TCPTimerTask implements Runnable {
 
-import java.util.TimerTask;
-import java.util.Timer;
-
-public class TCPTimerTask extends TimerTask {
+  // references of the timers that do not retransmit a packet
+  public static final Object DELAYED_ACK = "DELAYED_ACK";
+  public static final Object PERSIST = "PERSIST";
+  public static final Object TIME_WAIT = "TIME_WAIT";
 
   private BaseSocketImpl sock;
   private Object ref;
+  private TCPTimerWheel.Timeout timeout;
 
   /**
    * register timer event for TCP statck
-   * @param tcpTtimer TImer object to use
+   * @param wheel timer wheel to run on
    * @param delay length of time before timer in milliseconds
-   * @param sock socket implementation to call sock.handleTimer(ref)
+   * @param sock socket implementation to call
+   *        sock.handleTimer(this, ref)
    * @param ref generic object of information to pass back
    */
-  public TCPTimerTask(Timer tcpTimer, long delay, BaseSocketImpl sock, Object ref){
+  public TCPTimerTask(TCPTimerWheel wheel, long delay, BaseSocketImpl sock,
+                      Object ref){
     this.sock = sock;
     this.ref = ref;
-    tcpTimer.schedule(this, delay);
+    if (ref instanceof TCPPacket) {
+      ((TCPPacket) ref).retain();
+    }
+    this.timeout = wheel.schedule(this, delay);
+  }
+
+  /**
+   * keep the timer from expiring, unless it is expiring already
+   * @return whether the timer was still waiting
+   */
+  public boolean cancel(){
+    if (!timeout.cancel()) {
+      return false;
+    }
+    releaseRef();
+    return true;
   }
 
   public void run(){
-    sock.handleTimer(ref);
+    try {
+      sock.handleTimer(this, ref);
+    } finally {
+      releaseRef();
+    }
   }
-}
 
+  private void releaseRef() {
+    if (ref instanceof TCPPacket) {
+      ((TCPPacket) ref).release();
+    }
+  }
+}
@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+
+/**
+ * Hashed timing wheel that runs the timers of every connection on one
+ * thread.
+ *
+ * Time is cut into ticks and the wheel has one slot per tick, holding a
+ * doubly linked list of the timeouts that expire in it; a timeout more
+ * than one turn of the wheel away stays in its slot until the turn it
+ * is due in. Scheduling and cancelling a timeout are O(1): a link into
+ * or out of a list. Each tick the thread only looks at one slot, and
+ * expired tasks run on the thread one after another, outside the
+ * wheel's lock, so they must not block for long.
+ */
+class TCPTimerWheel {
+
+  static final long DEFAULT_TICK = 10; // ms
+  static final int DEFAULT_SLOTS = 512; // a power of two
+
+  private static TCPTimerWheel shared;
+
+  private final long tickNanos;
+  private final Timeout[] slots; // heads of the lists
+  private final int mask;
+  private final long start = System.nanoTime();
+  private long tick;   // next tick to expire
+  private int pending; // timeouts in the wheel
+
+  /**
+   * A scheduled task.
+   */
+  final class Timeout {
+    private final Runnable task;
+    private final long deadline; // tick
+    private int slot = -1;       // -1 once expired or cancelled
+    private Timeout prev;
+    private Timeout next;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Keeps the task from running, unless it is running already.
+     * @return whether the task was still waiting
+     */
+    boolean cancel() {
+      synchronized (TCPTimerWheel.this) {
+        if (slot < 0) {
+          return false;
+        }
+        unlink(this);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @param tickMillis length of a tick, the resolution of the wheel
+   * @param slots number of ticks in one turn, a power of two
+   */
+  TCPTimerWheel(long tickMillis, int slots) {
+    if (tickMillis < 1 || slots < 1 || (slots & (slots - 1)) != 0) {
+      throw new IllegalArgumentException("bad timer wheel " + tickMillis + "ms x " + slots);
+    }
+    this.tickNanos = tickMillis * 1000000;
+    this.slots = new Timeout[slots];
+    this.mask = slots - 1;
+    Thread worker = new Thread(this::run, "TCPTimerWheel");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * @return the wheel shared by all connections, started on first use
+   */
+  static synchronized TCPTimerWheel getShared() {
+    if (shared == null) {
+      shared = new TCPTimerWheel(DEFAULT_TICK, DEFAULT_SLOTS);
+    }
+    return shared;
+  }
+
+  /**
+   * Runs task once, delay milliseconds from now rounded up to a tick.
+   */
+  synchronized Timeout schedule(Runnable task, long delay) {
+    long now = currentTick();
+    if (pending == 0) {
+      tick = now; // nothing to catch up on after being idle
+    }
+    long ticks = Math.max(1, (delay * 1000000 + tickNanos - 1) / tickNanos);
+    Timeout t = new Timeout(task, Math.max(now + ticks, tick));
+    t.slot = (int) (t.deadline & mask);
+    t.next = slots[t.slot];
+    if (t.next != null) {
+      t.next.prev = t;
+    }
+    slots[t.slot] = t;
+    if (pending++ == 0) {
+      notifyAll();
+    }
+    return t;
+  }
+
+  private void unlink(Timeout t) {
+    if (t.prev != null) {
+      t.prev.next = t.next;
+    } else {
+      slots[t.slot] = t.next;
+    }
+    if (t.next != null) {
+      t.next.prev = t.prev;
+    }
+    t.prev = t.next = null;
+    t.slot = -1;
+    pending--;
+  }
+
+  private long currentTick() {
+    return (System.nanoTime() - start) / tickNanos;
+  }
+
+  private void run() {
+    ArrayList<Runnable> expired = new ArrayList<>();
+    while (true) {
+      synchronized (this) {
+        while (pending == 0) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        long now = currentTick();
+        // each slot is visited at most once, however far behind we are
+        long last = Math.min(now, tick + mask);
+        for (; tick <= last; tick++) {
+          Timeout t = slots[(int) (tick & mask)];
+          while (t != null) {
+            Timeout next = t.next;
+            if (t.deadline <= now) {
+              unlink(t);
+              expired.add(t.task);
+            }
+            t = next;
+          }
+        }
+        tick = Math.max(tick, now + 1);
+      }
+      for (Runnable task : expired) {
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+      expired.clear();
+      long sleep = start + tick * tickNanos - System.nanoTime();
+      if (sleep > 0) {
+        try {
+          Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Token bucket rate limiter. Tokens accrue continuously at the
+ * configured rate up to the burst size, and each packet takes one.
+ *
+ * reserve() never blocks: it takes a token even if the bucket is empty
+ * and tells the caller how long to wait until that token would have
+ * been available. TCPWrapper queues each packet until then, so nobody
+ * waits holding a lock, and packets are released with sub-millisecond
+ * spacing instead of in whole-second bursts.
+ */
+class TCPTokenBucket {
+
+  private double rate;   // tokens per second, 0 for no limit
+  private double burst;  // most tokens that can accumulate
+  private double tokens; // may go negative while callers wait for reserved tokens
+  private long last;     // System.nanoTime() of the last refill
+
+  /**
+   * @param rate tokens per second, 0 or less for no limit
+   * @param burst number of tokens that may be taken at once, at least 1
+   */
+  TCPTokenBucket(double rate, double burst) {
+    this.last = System.nanoTime();
+    setRate(rate, burst);
+  }
+
+  /**
+   * Changes the rate and burst size; the bucket starts out full.
+   * @param rate tokens per second, 0 or less for no limit
+   * @param burst number of tokens that may be taken at once, at least 1
+   */
+  synchronized void setRate(double rate, double burst) {
+    this.rate = Math.max(rate, 0);
+    this.burst = Math.max(burst, 1);
+    this.tokens = this.burst;
+  }
+
+  /**
+   * Takes one token.
+   * @return nanoseconds the caller must wait before using it, 0 if it
+   *         can be used right away
+   */
+  synchronized long reserve() {
+    if (rate == 0) {
+      return 0;
+    }
+    long now = System.nanoTime();
+    tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+    last = now;
+    tokens -= 1;
+    if (tokens >= 0) {
+      return 0;
+    }
+    return (long) (-tokens * 1e9 / rate);
+  }
+
+  /**
+   * @return nanoseconds until the tokens reserved so far are all due,
+   *         0 if a token taken now could be used right away
+   */
+  synchronized long backlog() {
+    if (rate == 0) {
+      return 0;
+    }
+    double left = Math.min(burst, tokens + (System.nanoTime() - last) * rate / 1e9);
+    return left >= 0 ? 0 : (long) (-left * 1e9 / rate);
+  }
+}
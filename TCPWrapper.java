@@ -1,6 +1,14 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 
 //---------------------------------------------------
@@ -21,22 +29,41 @@ import java.util.*;
 //
 //everything else has
 // default values:
-//   (1) sending rate defaults to 10 packets per second
+//   (1) sending rate defaults to 10 packets per second, with bursts
+//       of up to 10 packets
 //   (2) random packet dropping is disabled
 //   (3) selective packet dropping is disabled
+//   (4) every packet is checksummed, and checked when received
+//
+// send() never waits: not for a lock, not for the rate limit and not
+// for the socket buffer. it is called by connections while they hold
+// their own lock, often on a Demultiplexer lane, and waiting there would
+// hold up every connection sharing the lane.
+//
+// nor does every send() go to the channel itself. packets are encoded
+// into a queue, and whichever thread finds nobody sending takes the
+// turn and sends everything queued, including what other threads add
+// meanwhile. under load one thread sends a run of datagrams back to
+// back while the others only queue theirs.
+//
+// the rate limit is a token bucket: each packet reserves a token and
+// is queued with the time it is due, and sending stops at the first
+// packet that is not due yet. a pacer thread sleeps until then and
+// takes the turn itself. when the socket buffer is full the queue
+// waits for the Demultiplexer's selector to report the channel
+// writable again, instead of sleeping and retrying.
 //
 //---------------------------------------------------
 class TCPWrapper {
 
-    // the max number of packets allowed to be sent per second
+    // the max number of packets allowed to be sent per second, and
+    // how many of those may go out back to back
     static private int packetsPerSecond = 10;
+    static private int packetBurst = 10;
 
-    // the Date() object for rate limiting the packets.
-    static long time = (new Date()).getTime();
-    static long temptime;
-    
-    // counter of how many packets have been sent this second, so far.
-    static int packetBurst = 0;
+    // paces all packets sent, shared by every connection.
+    static private TCPTokenBucket rateLimiter =
+        new TCPTokenBucket(packetsPerSecond, packetBurst);
     
     // flag if we are to drop random packets (i.e. send() will not send
     // the packet - to simulate packet loss!)
@@ -56,23 +83,92 @@ class TCPWrapper {
     
     // counter for how many packets sent OR dropped (total of both).
     // so, counter will = 1 for the first packet sent.
-    static long packetCounter = 0;
+    static AtomicLong packetCounter = new AtomicLong();
 
     // counter for how many packets have been dropped.
-    static long droppedCounter = 0;
+    static AtomicLong droppedCounter = new AtomicLong();
+    
+    // checksum modes: compute and check the checksum of every packet,
+    // of every packet except those to and from this host (loopback is
+    // trusted, as if a network card did the work), or of none.
+    static final String CHECKSUM_ON = "on";
+    static final String CHECKSUM_OFFLOAD = "offload";
+    static final String CHECKSUM_OFF = "off";
+
+    static private String checksumMode = CHECKSUM_ON;
     
     // for UDP sending
     static int portForUDP = -1;
 
+    // packets waiting to be sent before further ones are dropped, and
+    // the encoded packets kept for reuse of each size.
+    static final int SEND_QUEUE_SIZE = 1024;
+    static final int SEND_BUFFERS_POOLED = 256;
+
+    // how long to wait before trying again while the socket buffer is
+    // full and no selector watches the channel yet.
+    static final long SEND_RETRY_NANOS = 100000;
+
+    // the one UDP channel every datagram goes out on, bound to
+    // portForUDP. the Demultiplexer receives on it as well.
+    static private DatagramChannel channel = null;
+
+    // packets are encoded into direct buffers, so the channel can hand
+    // them to the kernel without another copy.
+    static private TCPBufferPool sendBuffers =
+        new TCPBufferPool(true, SEND_BUFFERS_POOLED);
+
+    // an encoded packet waiting in the send queue, and the
+    // System.nanoTime() its token of the rate limit is due
+    static private final class Datagram {
+        TCPBufferPool.PooledBuffer data;
+        InetSocketAddress to;
+        long due;
+    }
+
+    static private TCPPool<Datagram> datagrams =
+        new TCPPool<Datagram>(SEND_QUEUE_SIZE, Datagram::new);
+
+    // the send queue, the number of packets in it, and whether a thread
+    // is sending them. only the thread that set sending takes packets
+    // off the queue.
+    static private Queue<Datagram> sendQueue =
+        new ConcurrentLinkedQueue<Datagram>();
+    static private AtomicInteger queued = new AtomicInteger();
+    static private AtomicBoolean sending = new AtomicBoolean();
+
+    // set while the socket buffer is full, until the selector finds the
+    // channel writable again, see channelWritable().
+    static private volatile boolean writeBlocked = false;
+
+    // the Demultiplexer's registration of the channel
+    static private volatile SelectionKey selectionKey = null;
+
+    // when the first queued packet is due, once sending had to stop
+    // there, 0 if it did not; and the thread that sends it at that
+    // time, started the first time it is needed.
+    static private AtomicLong pacedUntil = new AtomicLong();
+    static private Thread pacer = null;
+
+    // and the address it last sent to, which is usually the next one
+    // as well, so a send does not have to build a new one.
+    static private ThreadLocal<InetSocketAddress> lastTarget =
+        new ThreadLocal<InetSocketAddress>();
+
     
-    // sets the packet rate, of course
+    // sets the packet rate, of course. a rate of 0 or less removes the
+    // limit. the burst size follows the rate unless set separately.
     static public void setPacketRate( int pps ) {
-        if (pps > 50) {
-            System.out.println("packet rate should not be set higher "+
-                               "than 50 packets per second.");
-            System.exit(1);
-        }
         packetsPerSecond = pps;
+        packetBurst = Math.max(pps, 1);
+        rateLimiter.setRate(packetsPerSecond, packetBurst);
+    }
+
+    // sets how many packets may be sent back to back before the rate
+    // limit spaces them out.
+    static public void setPacketBurst( int burst ) {
+        packetBurst = Math.max(burst, 1);
+        rateLimiter.setRate(packetsPerSecond, packetBurst);
     }
 
 
@@ -100,90 +196,266 @@ class TCPWrapper {
         selectedPacketsDropped = true;
         if (dropSet==null)
             dropSet = new Hashtable();
-        dropSet.put( new Long((long)nthPacket), new Long((long)nthPacket));
+        dropSet.put( Long.valueOf(nthPacket), Long.valueOf(nthPacket));
     }
 
 
 
+    // sets the checksum mode, one of CHECKSUM_ON, CHECKSUM_OFFLOAD or
+    // CHECKSUM_OFF. a packet sent without a checksum carries 0, which
+    // the other end accepts whatever its own mode.
+    static public void setChecksumMode( String mode ) {
+        if (!mode.equals(CHECKSUM_ON) && !mode.equals(CHECKSUM_OFFLOAD)
+            && !mode.equals(CHECKSUM_OFF))
+            throw new IllegalArgumentException("unknown checksum mode "+mode);
+        checksumMode = mode;
+    }
+
+    // whether packets to and from a host are checksummed
+    static private boolean checksummed( InetAddress host ) {
+        String mode = checksumMode;
+        if (mode.equals(CHECKSUM_OFFLOAD))
+            return( !host.isLoopbackAddress() );
+        return( mode.equals(CHECKSUM_ON) );
+    }
+
+
     // MUST be called before sending packets
     // or else you'll just crash =)
     static public void setUDPPortNumber( int port ) {
         portForUDP = port;
     }
+
+
+    // returns the channel bound to portForUDP, opening it the first
+    // time. used for every send, and by the Demultiplexer to receive.
+    static synchronized public DatagramChannel getChannel() throws IOException {
+        if (channel == null) {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(portForUDP));
+        }
+        return channel;
+    }
+
+
+    // called by the Demultiplexer with its registration of the channel,
+    // so a full socket buffer can be waited out with OP_WRITE.
+    static public void setSelectionKey( SelectionKey key ) {
+        selectionKey = key;
+    }
+
+    // called by the Demultiplexer once the channel is writable again:
+    // stops watching for that and sends what was queued meanwhile.
+    static public void channelWritable() {
+        selectionKey.interestOps(SelectionKey.OP_READ);
+        writeBlocked = false;
+        flush();
+    }
     
 
 
-    // sends a packet over the network, wrapped in a UDP datagram:
+    // sends a packet over the network, wrapped in a UDP datagram. the
+    // packet is encoded and queued before this returns, so the caller
+    // may release it right after:
     //
-    //   if we try to send a packet faster than the rate limit, this
-    //   function will BLOCK (i.e. sit and wait) until it can send the
-    //   packet.
-    static synchronized public void send(TCPPacket packet, InetAddress remoteHost) {
+    //   if we try to send a packet faster than the rate limit, it
+    //   waits in the queue until its turn comes up, and the pacer
+    //   sends it. this function does NOT wait for that.
+    static public void send(TCPPacket packet, InetAddress remoteHost) {
 
         // the first time this happens, it increments from 0 to 1
         // which is the desired condition.
-        packetCounter++;
+        long packetNumber = packetCounter.incrementAndGet();
 
         
         // CHECK PACKET DROPPING STUFF
         if (randomPacketsDropped){
             if (numberGenerator.nextDouble() < rateToDrop) {
-                droppedCounter++;
-                System.out.println("packet # " +packetCounter+
+                droppedCounter.incrementAndGet();
+                System.out.println("packet # " +packetNumber+
                                    " randomly dropped.");
                 return;
             }
         }
         if ( (selectedPacketsDropped)&&
-                  (dropSet.containsKey( new Long(packetCounter) ))) {
-            droppedCounter++;
-            System.out.println("packet # " +packetCounter+
+                  (dropSet.containsKey( Long.valueOf(packetNumber) ))) {
+            droppedCounter.incrementAndGet();
+            System.out.println("packet # " +packetNumber+
                                " selectively dropped.");
 
             return;
         }
                 
 
-        // CHECK RATE LIMIT
-        if (packetBurst>=packetsPerSecond) {
-            temptime = (new Date()).getTime();
-
-            // prevents us from proceeding till at least a second has
-            // passed since our last burst of packets.
-            while( temptime< time+1000)
-	      temptime = (new Date()).getTime();
-            time = temptime;
-            packetBurst=0;
+        if (queued.incrementAndGet() > SEND_QUEUE_SIZE) {
+            queued.decrementAndGet();
+            droppedCounter.incrementAndGet();
+            System.out.println("packet # " +packetNumber+
+                               " dropped, send queue full.");
+            return;
         }
-        packetBurst++;
 
-        
-        try {
-            byte toSend[] = packet.getBufferPacket();
-            DatagramPacket p = new DatagramPacket(toSend,toSend.length,
-                                                  remoteHost,portForUDP);
-            DatagramSocket sock = new DatagramSocket();
-            sock.send(p);
-        }
-        catch(Exception e) {
-            System.out.println(e);
-            System.exit(1);
+        // the header is encoded straight into a buffer of its own and
+        // the data copied in behind it from wherever the packet keeps
+        // it. the channel is shared by every peer and so not connected,
+        // and an unconnected DatagramChannel can only send one buffer:
+        // there is no gathering send to hand it header and data
+        // separately.
+        Datagram d = datagrams.acquire();
+        d.data = sendBuffers.acquire(packet.getPacketLength());
+        packet.encode(d.data.buffer, checksummed(remoteHost));
+        d.data.buffer.flip();
+        InetSocketAddress to = lastTarget.get();
+        if (to == null || !to.getAddress().equals(remoteHost)) {
+            to = new InetSocketAddress(remoteHost,portForUDP);
+            lastTarget.set(to);
         }
-
+        d.to = to;
+        // CHECK RATE LIMIT
+        // reserve our slot; the packet goes out once it comes up.
+        d.due = System.nanoTime() + rateLimiter.reserve();
+        sendQueue.add(d);
+        flush();
 
         // want this debug line?
-        System.out.println("\n<<< packet # "+packetCounter+" to "+remoteHost+"...");
+        System.out.println("\n<<< packet # "+packetNumber+" to "+remoteHost+"...");
         System.out.println("<<< "+packet+"\n");
     }
 
     
+    // waits until a packet sent now would not have to queue for the
+    // rate limit. for a thread that does nothing but send, like the
+    // sender of a connection, so it keeps to the rate instead of
+    // filling the queue ahead of it. it must not hold any lock, and a
+    // lane must never call this.
+    static public void awaitTurn() {
+        for (long wait = rateLimiter.backlog(); wait > 0;
+             wait = rateLimiter.backlog()) {
+            LockSupport.parkNanos(wait);
+            if (Thread.currentThread().isInterrupted())
+                return;
+        }
+    }
+
+
+    // sends the queued packets that are due, unless another thread is
+    // already at it or the socket buffer is full. the channel is
+    // non-blocking (see Demultiplexer), so a send that does not fit
+    // returns 0; the packet stays first in the queue until the selector
+    // finds room.
+    static private void flush() {
+        while (ready() && sending.compareAndSet(false, true)) {
+            try {
+                Datagram d;
+                while (!writeBlocked && (d = sendQueue.peek()) != null) {
+                    if (d.due - System.nanoTime() > 0) {
+                        pace(d.due);
+                        break;
+                    }
+                    if (getChannel().send(d.data.buffer, d.to) == 0) {
+                        waitWritable();
+                        continue;
+                    }
+                    sendQueue.poll();
+                    queued.decrementAndGet();
+                    d.data.release();
+                    d.data = null;
+                    d.to = null;
+                    datagrams.release(d);
+                }
+            }
+            catch(Exception e) {
+                System.out.println(e);
+                System.exit(1);
+            }
+            finally {
+                sending.set(false);
+            }
+            // loop: a packet may have been queued after the last peek()
+            // by a thread that found us still sending.
+        }
+    }
+
+    // whether the first queued packet can be sent right now
+    static private boolean ready() {
+        Datagram d = sendQueue.peek();
+        return( d != null && !writeBlocked && d.due - System.nanoTime() <= 0 );
+    }
+
+    // sending stopped at a packet that is due at the given time: have
+    // the pacer take the turn then.
+    static private void pace( long due ) {
+        pacedUntil.set(due);
+        LockSupport.unpark(getPacer());
+    }
+
+    // returns the pacer, starting it the first time. it sleeps until the
+    // time in pacedUntil, or until it is set, and then flushes.
+    static synchronized private Thread getPacer() {
+        if (pacer == null) {
+            pacer = new Thread("TCPWrapper pacer") {
+                public void run() {
+                    while (true) {
+                        long due = pacedUntil.get();
+                        long wait = due - System.nanoTime();
+                        if (due == 0)
+                            LockSupport.park(this);
+                        else if (wait > 0)
+                            LockSupport.parkNanos(this, wait);
+                        else if (pacedUntil.compareAndSet(due, 0))
+                            flush();
+                    }
+                }
+            };
+            pacer.setDaemon(true);
+            pacer.start();
+        }
+        return pacer;
+    }
+
+    // the socket buffer is full: have the selector tell us when there
+    // is room again. writeBlocked is set first, since the selector may
+    // report the channel writable right away.
+    static private void waitWritable() {
+        SelectionKey key = selectionKey;
+        if (key == null) {
+            LockSupport.parkNanos(SEND_RETRY_NANOS);
+            return;
+        }
+        writeBlocked = true;
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        key.selector().wakeup();
+    }
+
+    
     // unwraps the TCP packet from the UDP wrapper. this function does
     // NOT receive UDP packets from the network. it is invoked AFTER
     // receiving the datagram.
     static public TCPPacket unwrap(DatagramPacket d) {
-        byte b[] = new byte[d.getLength()];
-	System.arraycopy(d.getData(),0,b,0,d.getLength());
-        return( new TCPPacket(b, d.getAddress()) );
+        return( unwrap(ByteBuffer.wrap(d.getData(),d.getOffset(),d.getLength()),
+                       d.getAddress()) );
+    }
+
+    // same as above, for a datagram received into a buffer. the
+    // datagram runs from the buffer's position to its limit, and the
+    // packet keeps using those bytes of the buffer.
+    static public TCPPacket unwrap(ByteBuffer b, InetAddress sender) {
+        return( new TCPPacket(b.slice(), sender) );
+    }
+
+    // same as above, for a datagram of length bytes received at offset
+    // into a pooled buffer. the packet comes from the pool and holds
+    // the buffer until it is released.
+    static public TCPPacket unwrap(TCPBufferPool.PooledBuffer b, int offset,
+                                   int length, InetAddress sender) {
+        return( TCPPacket.obtain(b, offset, length, sender) );
+    }
+
+    // whether a received packet should be used: its checksum is good,
+    // or packets from its sender are not checked. this is left to the
+    // caller so it can be done on whichever thread it suits.
+    static public boolean checksumOk(TCPPacket packet) {
+        return( !checksummed(packet.sourceAddr) || packet.checksumOk() );
     }
     
 